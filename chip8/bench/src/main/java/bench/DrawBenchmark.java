@@ -0,0 +1,45 @@
+package bench;
+
+import chip.Chip;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Cost of one DXYN blit, measured on a program that repeats it 64 times before jumping back.
+// The jump is counted as one more operation per invocation (see ClearBenchmark for 00E0).
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DrawBenchmark {
+
+    private static final int REPEAT = 64;
+
+    // Sprite rows per DXYN; the sprite lands at x = 5 so every row straddles two bytes of the display row
+    @Param({"1", "5", "15"})
+    public int height;
+
+    private Chip chip;
+
+    @Setup
+    public void setUp() {
+        // V0 = 5, V1 = 3, I = 0x200: sprite data is the program itself
+        chip = new Chip();
+        chip.init();
+        chip.loadProgram(Fixtures.repeat(new int[] { 0x6005, 0x6103, 0xA200 }, 0xD010 | height, REPEAT));
+        chip.execute(3);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REPEAT + 1)
+    public long[] drw() {
+        chip.execute(REPEAT + 1);
+        return chip.getDisplayRows();
+    }
+}
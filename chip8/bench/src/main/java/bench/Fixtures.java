@@ -0,0 +1,41 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+// Inputs shared by the benchmarks: the ROMs of chip8/games, packaged into the benchmark jar, and small
+// generated programs that repeat a single instruction
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    static byte[] rom(String name) {
+        try (InputStream in = Fixtures.class.getResourceAsStream("/games/" + name)) {
+            if (in == null)
+                throw new IllegalArgumentException("No ROM " + name + " among the fixtures");
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The setup instructions, then count copies of opcode followed by a jump back to the first copy
+    static byte[] repeat(int[] setup, int opcode, int count) {
+        byte[] rom = new byte[(setup.length + count + 1) * 2];
+        int p = 0;
+        for (int op : setup) {
+            rom[p++] = (byte) (op >> 8);
+            rom[p++] = (byte) op;
+        }
+        int loop = 0x200 + p;
+        for (int i = 0; i < count; i++) {
+            rom[p++] = (byte) (opcode >> 8);
+            rom[p++] = (byte) opcode;
+        }
+        rom[p++] = (byte) (0x10 | loop >> 8);
+        rom[p] = (byte) loop;
+        return rom;
+    }
+}
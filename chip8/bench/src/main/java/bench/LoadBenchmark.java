@@ -0,0 +1,63 @@
+package bench;
+
+import chip.Chip;
+import chip.RomLibrary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// ROM load time: reading the file, mapping it into an existing chip, and creating a chip that runs it.
+// The file is INVADERS, written to a temporary directory so the read does not depend on the working directory.
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LoadBenchmark {
+
+    private byte[] rom;
+    private Path file;
+    private Chip chip;
+
+    @Setup
+    public void setUp() throws IOException {
+        rom = Fixtures.rom("INVADERS");
+        file = Files.createTempFile("chip8-bench", ".ch8");
+        Files.write(file, rom);
+
+        chip = new Chip();
+        chip.init();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public byte[] readRom() throws IOException {
+        return RomLibrary.readRom(file);
+    }
+
+    @Benchmark
+    public Chip loadProgram() {
+        chip.loadProgram(rom);
+        return chip;
+    }
+
+    @Benchmark
+    public Chip newChip() {
+        Chip created = new Chip();
+        created.init();
+        created.loadProgram(rom);
+        return created;
+    }
+}
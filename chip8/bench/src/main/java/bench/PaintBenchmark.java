@@ -0,0 +1,62 @@
+package bench;
+
+import emu.ChipPanel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.annotations.State;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+// ChipPanel.present() plus paint() into an offscreen image at the default scale, alternating between two
+// fixed frames that differ in every row, with either one or all rows marked dirty
+@State(Scope.Thread)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PaintBenchmark {
+
+    @Param({"1", "32"})
+    public int dirtyRows;
+
+    private ChipPanel panel;
+    private BufferedImage target;
+    private Graphics2D graphics;
+    private long[][] frames;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        panel = new ChipPanel(10, Color.white, Color.black);
+        panel.setSize(640, 320);
+        target = new BufferedImage(640, 320, BufferedImage.TYPE_INT_RGB);
+        graphics = target.createGraphics();
+
+        Random random = new Random(1);
+        frames = new long[2][32];
+        for (int y = 0; y < 32; y++) {
+            frames[0][y] = random.nextLong();
+            frames[1][y] = ~frames[0][y];
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        graphics.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage paint() {
+        next ^= 1;
+        panel.present(frames[next], dirtyRows == 32 ? 0xFFFFFFFF : 1);
+        panel.paint(graphics);
+        return target;
+    }
+}
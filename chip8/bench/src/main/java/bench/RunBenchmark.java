@@ -0,0 +1,128 @@
+package bench;
+
+import chip.Chip;
+import chip.ChipFault;
+import chip.ChipSnapshot;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Frames per second of each ROM in chip8/games, in the interpreter (Chip.run()) and the recompiler, with the
+// instructions per second actually executed as a secondary result: idle-loop skipping is off, but a ROM blocked
+// in FX0A still ends its frames early. Frames run the usual 10 instructions, or 1000 as uncapped batch runs do,
+// where the end of a frame seldom cuts a block short. Runs without input; a ROM that faults is put back to its
+// state after the first second and continues.
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RunBenchmark {
+
+    private static final int FRAMES = 100;
+
+    @Param({"15PUZZLE", "BLINKY", "BLITZ", "BRIX", "CONNECT4", "GUESS", "HIDDEN", "INVADERS", "KALEID", "MAZE",
+            "MERLIN", "MISSILE", "PONG", "PONG2", "PUZZLE", "SYZYGY", "TANK", "TETRIS", "TICTAC", "UFO", "VBRIX",
+            "VERS", "WIPEOFF", "test_opcode.ch8"})
+    public String rom;
+
+    @Param({"false", "true"})
+    public boolean recompiler;
+
+    @Param({"10", "1000"})
+    public int cyclesPerFrame;
+
+    private Chip chip;
+    private ChipSnapshot start;
+
+    @Setup
+    public void setUp() {
+        chip = new Chip();
+        chip.init();
+        chip.loadProgram(Fixtures.rom(rom));
+        chip.setRecompiler(recompiler);
+        chip.setCyclesPerFrame(cyclesPerFrame);
+        chip.setIdleLoopSkipping(false);
+
+        start = new ChipSnapshot();
+        chip.snapshot(start);
+        try {
+            for (int f = 0; f < 60; f++)
+                chip.runFrame();
+            chip.snapshot(start);
+        } catch (ChipFault e) {
+            chip.restore(start);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long frames(Executed executed) {
+        long waitingBefore = chip.getWaitingInstructions();
+        int f = 0;
+        try {
+            for (; f < FRAMES; f++)
+                chip.runFrame();
+        } catch (ChipFault e) {
+            chip.restore(start); // the part of the faulting frame that ran is not counted
+        }
+        executed.instructions += (long) f * cyclesPerFrame - (chip.getWaitingInstructions() - waitingBefore);
+        return chip.getFrameCount();
+    }
+
+    // The recompiler against the interpreter on their own, without the ROMs: a straight-line block of ALU
+    // instructions and the jump back to its start, run a whole number of times per frame, so every instruction
+    // comes from the compiled block once it is hot
+    @State(Scope.Thread)
+    @Fork(1)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public static class StraightLine {
+
+        private static final int BLOCK = 16;
+        private static final int CYCLES_PER_FRAME = BLOCK * 10;
+
+        @Param({"false", "true"})
+        public boolean recompiler;
+
+        private Chip chip;
+
+        @Setup
+        public void setUp() {
+            chip = new Chip();
+            chip.init();
+            chip.loadProgram(Fixtures.repeat(new int[0], 0x7101, BLOCK - 1));
+            chip.setRecompiler(recompiler);
+            chip.setCyclesPerFrame(CYCLES_PER_FRAME);
+            chip.setIdleLoopSkipping(false);
+        }
+
+        @Benchmark
+        @OperationsPerInvocation(FRAMES * CYCLES_PER_FRAME)
+        public long instructions() {
+            for (int f = 0; f < FRAMES; f++)
+                chip.runFrame();
+            return chip.getFrameCount();
+        }
+    }
+
+    // Instructions actually executed, reported by JMH per second next to the frames
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Executed {
+
+        public long instructions;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            instructions = 0;
+        }
+    }
+}
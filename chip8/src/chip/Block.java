@@ -0,0 +1,78 @@
+package chip;
+
+/**
+ * A basic block: a straight run of decoded instructions starting at {@code start}. Only the last instruction may
+ * jump or write memory; a skip elsewhere in the block can only pass over the instruction right after it, so the
+ * block goes on past a skip and the instruction it may skip, which is how programs write a conditional jump.
+ * A block is interpreted until it has run COMPILE_THRESHOLD times, then compiled into code of its own by
+ * BlockCompiler. Blocks of a single instruction stay interpreted: the call into compiled code costs more than
+ * interpreting that one instruction.
+ */
+final class Block {
+
+    // Longest block we compile, kept below the page size so a block never spans more than two pages
+    static final int MAX_LENGTH = 64;
+
+    // Runs of a block before it is compiled, so code that runs only a few times, or is rewritten before it
+    // runs many times, never costs a class
+    static final int COMPILE_THRESHOLD = 32;
+
+    final int start;
+    final int end; // first address after the block
+    final int[] ops;
+    Code code; // null until compiled
+    int runs;
+
+    Block(int start, int[] ops) {
+        this.start = start;
+        this.end = start + ops.length * 2;
+        this.ops = ops;
+    }
+
+    // Compiled code of a block: runs its instructions on the given chip and returns how many it executed, which
+    // is all of them but those that skips passed over
+    interface Code {
+        int run(Chip chip);
+    }
+
+    // Ends a block: anything that jumps, may stall on the same pc, writes memory, stops the machine or may stop in
+    // the debugger. A TRAP also starts a block of its own, so the debugger never stops inside a block.
+    static boolean isTerminator(int kind) {
+        switch (kind) {
+            case Decoder.RET:
+            case Decoder.JP:
+            case Decoder.CALL:
+            case Decoder.JP_V0:
+            case Decoder.E_NOP:
+            case Decoder.LD_K:
+            case Decoder.LD_B:
+            case Decoder.LD_MEM_V:
+            case Decoder.INVALID:
+            case Decoder.TRAP:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Skips the next instruction on a condition. A skip ends its block only when that instruction cannot follow
+    // it inside the block (see canBeSkipped()).
+    static boolean isSkip(int kind) {
+        switch (kind) {
+            case Decoder.SE_NN:
+            case Decoder.SNE_NN:
+            case Decoder.SE_VY:
+            case Decoder.SKP:
+            case Decoder.SKNP:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Whether the instruction after a skip may join its block: not another skip, whose own skip would leave the
+    // block, and not a TRAP
+    static boolean canBeSkipped(int kind) {
+        return !isSkip(kind) && kind != Decoder.TRAP;
+    }
+}
@@ -0,0 +1,362 @@
+package chip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns a basic block into a hidden class of its own, whose run() calls the instruction methods of Chip one
+ * after the other with the operands as constants. Every block thus has a single entry point, and HotSpot
+ * inlines the instructions into it as into any other small method, which a loop over per-instruction closures
+ * never allows. The class file is written here directly, as the JDK has no public bytecode API yet. The only
+ * branches in run() go around the instruction after a skip inside the block, so its stack map frames are simple.
+ * The hidden class is a nestmate of Chip, so it calls the private instruction methods, and it is unloaded once
+ * no block refers to it.
+ *
+ * Classes depend only on the decoded instructions, not on the chip or the address, so they are shared by every
+ * chip and reused when a block is dropped (after a write to its page) and found again.
+ */
+final class BlockCompiler {
+
+    // Distinct blocks kept; the cache starts over when it is full, so self-modifying code cannot grow it forever
+    private static final int CACHE_LIMIT = 4096;
+
+    private static final Map<Key, Block.Code> cache = new ConcurrentHashMap<>();
+    private static final MethodHandles.Lookup lookup;
+
+    static {
+        try {
+            lookup = MethodHandles.privateLookupIn(Chip.class, MethodHandles.lookup());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private BlockCompiler() {
+    }
+
+    // The compiled code of the given decoded instructions
+    static Block.Code compile(int[] ops) {
+        Key key = new Key(ops);
+        Block.Code code = cache.get(key);
+        if (code == null) {
+            code = define(ops);
+            if (cache.size() >= CACHE_LIMIT)
+                cache.clear();
+            Block.Code raced = cache.putIfAbsent(key, code);
+            if (raced != null)
+                code = raced;
+        }
+        return code;
+    }
+
+    private static Block.Code define(int[] ops) {
+        try {
+            MethodHandles.Lookup block = lookup.defineHiddenClass(assemble(ops), true, MethodHandles.Lookup.ClassOption.NESTMATE);
+            return (Block.Code) block.findConstructor(block.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Cannot define a compiled block", e);
+        }
+    }
+
+    // final class chip/CompiledBlock implements Block.Code, with a public no-argument constructor and a run(Chip)
+    // that calls the instruction method of each op in turn. Local 2 counts the instructions executed: it starts
+    // at the length of the block, and each skip that passes over the next instruction takes one off.
+    private static byte[] assemble(int[] ops) {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef("chip/CompiledBlock");
+        int superClass = pool.classRef("java/lang/Object");
+        int codeInterface = pool.classRef("chip/Block$Code");
+        int superInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+
+        ByteArrayOutputStream run = new ByteArrayOutputStream();
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        int frameCount = 0;
+        int lastFrame = -1;
+        push(run, pool, ops.length);
+        run.write(ISTORE_2);
+        for (int i = 0; i < ops.length; i++) {
+            call(run, pool, ops[i]);
+            if (!Block.isSkip(Decoder.kind(ops[i])))
+                continue;
+            if (i == ops.length - 1) { // what it skips is not part of the block
+                run.write(POP);
+                continue;
+            }
+
+            // ifeq next; iinc 2, -1; goto after; next: <skipped instruction>; after:
+            ByteArrayOutputStream skipped = new ByteArrayOutputStream();
+            call(skipped, pool, ops[++i]);
+            run.write(IFEQ);
+            writeShort(run, 9);
+            run.write(IINC);
+            run.write(2);
+            run.write(-1);
+            run.write(GOTO);
+            writeShort(run, 3 + skipped.size());
+            for (int target : new int[] { run.size(), run.size() + skipped.size() }) {
+                frame(frames, lastFrame, target);
+                lastFrame = target;
+                frameCount++;
+            }
+            run.writeBytes(skipped.toByteArray());
+        }
+        run.write(ILOAD_2);
+        run.write(IRETURN);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(61); // Java 17
+            int init = pool.utf8("<init>");
+            int initType = pool.utf8("()V");
+            int runName = pool.utf8("run");
+            int runType = pool.utf8("(Lchip/Chip;)I");
+            int codeAttribute = pool.utf8("Code");
+            int stackMapAttribute = pool.utf8("StackMapTable");
+            pool.writeTo(out);
+
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(codeInterface);
+            out.writeShort(0); // fields
+            out.writeShort(2); // methods
+            method(out, init, initType, codeAttribute, 1, 1,
+                    new byte[] { ALOAD_0, INVOKESPECIAL, (byte) (superInit >> 8), (byte) superInit, RETURN }, 0, 0, null);
+            method(out, runName, runType, codeAttribute, 4, 3, run.toByteArray(), stackMapAttribute, frameCount,
+                    frames.toByteArray());
+            out.writeShort(0); // class attributes
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // chip.<instruction method>(operands...), see the instruction methods in Chip; anything else goes through
+    // interpret(). Skips leave whether they skipped on the stack.
+    private static void call(ByteArrayOutputStream code, ConstantPool pool, int op) {
+        int x = Decoder.x(op);
+        int y = Decoder.y(op);
+        int arg = Decoder.argument(op);
+        String name;
+        int[] operands;
+        switch (Decoder.kind(op)) {
+            case Decoder.CLS: name = "cls"; operands = new int[0]; break;
+            case Decoder.RET: name = "ret"; operands = new int[0]; break;
+            case Decoder.JP: name = "jp"; operands = new int[] { arg }; break;
+            case Decoder.CALL: name = "call"; operands = new int[] { arg }; break;
+            case Decoder.SE_NN: name = "seNn"; operands = new int[] { x, arg }; break;
+            case Decoder.SNE_NN: name = "sneNn"; operands = new int[] { x, arg }; break;
+            case Decoder.SE_VY: name = "seVy"; operands = new int[] { x, y }; break;
+            case Decoder.SKP: name = "skp"; operands = new int[] { x }; break;
+            case Decoder.SKNP: name = "sknp"; operands = new int[] { x }; break;
+            case Decoder.LD_NN: name = "ldNn"; operands = new int[] { x, arg }; break;
+            case Decoder.ADD_NN: name = "addNn"; operands = new int[] { x, arg }; break;
+            case Decoder.LD_VY: name = "ldVy"; operands = new int[] { x, y }; break;
+            case Decoder.OR: name = "or"; operands = new int[] { x, y }; break;
+            case Decoder.AND: name = "and"; operands = new int[] { x, y }; break;
+            case Decoder.XOR: name = "xor"; operands = new int[] { x, y }; break;
+            case Decoder.LD_I: name = "ldI"; operands = new int[] { arg }; break;
+            case Decoder.DRW: name = "drw"; operands = new int[] { x, y, arg }; break;
+            case Decoder.LD_VX_DT: name = "ldVxDt"; operands = new int[] { x }; break;
+            case Decoder.LD_DT: name = "ldDt"; operands = new int[] { x }; break;
+            case Decoder.LD_ST: name = "ldSt"; operands = new int[] { x }; break;
+            case Decoder.ADD_I: name = "addI"; operands = new int[] { x }; break;
+            case Decoder.LD_F: name = "ldF"; operands = new int[] { x }; break;
+            case Decoder.LD_V_MEM: name = "ldVMem"; operands = new int[] { x }; break;
+            default: name = "interpret"; operands = new int[] { op }; break;
+        }
+
+        code.write(ALOAD_1);
+        StringBuilder type = new StringBuilder("(");
+        for (int operand : operands) {
+            push(code, pool, operand);
+            type.append('I');
+        }
+        type.append(Block.isSkip(Decoder.kind(op)) ? ")Z" : ")V");
+        int method = pool.methodRef("chip/Chip", name, type.toString());
+        code.write(INVOKEVIRTUAL);
+        code.write(method >> 8);
+        code.write(method);
+    }
+
+    private static void push(ByteArrayOutputStream code, ConstantPool pool, int value) {
+        if (value >= 0 && value <= 5) {
+            code.write(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.write(BIPUSH);
+            code.write(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.write(SIPUSH);
+            code.write(value >> 8);
+            code.write(value);
+        } else {
+            int constant = pool.integer(value);
+            code.write(LDC_W);
+            code.write(constant >> 8);
+            code.write(constant);
+        }
+    }
+
+    // The stack map frame at the given branch target, after the one at previous (-1 for the first). The stack is
+    // always empty there, and the locals are this, the chip and the count, which the first frame appends.
+    private static void frame(ByteArrayOutputStream frames, int previous, int target) {
+        int delta = target - previous - 1;
+        if (previous < 0) {
+            frames.write(APPEND_FRAME_1);
+            writeShort(frames, delta);
+            frames.write(ITEM_INTEGER);
+        } else if (delta < 64) {
+            frames.write(delta); // same_frame
+        } else {
+            frames.write(SAME_FRAME_EXTENDED);
+            writeShort(frames, delta);
+        }
+    }
+
+    private static void method(DataOutputStream out, int name, int type, int codeAttribute, int maxStack, int maxLocals,
+                               byte[] code, int stackMapAttribute, int frameCount, byte[] frames) throws IOException {
+        out.writeShort(ACC_PUBLIC);
+        out.writeShort(name);
+        out.writeShort(type);
+        out.writeShort(1);
+        out.writeShort(codeAttribute);
+        boolean stackMap = frameCount > 0;
+        out.writeInt(12 + code.length + (stackMap ? 8 + frames.length : 0));
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // exception table
+        out.writeShort(stackMap ? 1 : 0);
+        if (stackMap) {
+            out.writeShort(stackMapAttribute);
+            out.writeInt(2 + frames.length);
+            out.writeShort(frameCount);
+            out.write(frames);
+        }
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final byte ICONST_0 = 0x03;
+    private static final byte BIPUSH = 0x10;
+    private static final byte SIPUSH = 0x11;
+    private static final byte LDC_W = 0x13;
+    private static final byte ALOAD_0 = 0x2A;
+    private static final byte ALOAD_1 = 0x2B;
+    private static final byte ILOAD_2 = 0x1C;
+    private static final byte ISTORE_2 = 0x3D;
+    private static final byte POP = 0x57;
+    private static final byte IINC = (byte) 0x84;
+    private static final byte IFEQ = (byte) 0x99;
+    private static final byte GOTO = (byte) 0xA7;
+    private static final byte IRETURN = (byte) 0xAC;
+    private static final byte RETURN = (byte) 0xB1;
+    private static final byte INVOKEVIRTUAL = (byte) 0xB6;
+    private static final byte INVOKESPECIAL = (byte) 0xB7;
+
+    private static final int APPEND_FRAME_1 = 252;
+    private static final int SAME_FRAME_EXTENDED = 251;
+    private static final int ITEM_INTEGER = 1;
+
+    // Constant pool of the class being assembled; each distinct entry is added once
+    private static final class ConstantPool {
+
+        private final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(entries);
+        private final Map<String, Integer> indices = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value) {
+            return add("U" + value, 1, () -> out.writeUTF(value));
+        }
+
+        int integer(int value) {
+            return add("I" + value, 3, () -> out.writeInt(value));
+        }
+
+        int classRef(String name) {
+            int nameIndex = utf8(name);
+            return add("C" + name, 7, () -> out.writeShort(nameIndex));
+        }
+
+        int methodRef(String owner, String name, String type) {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(type);
+            int nameAndType = add("N" + name + type, 12, () -> {
+                out.writeShort(nameIndex);
+                out.writeShort(typeIndex);
+            });
+            return add("M" + owner + "." + name + type, 10, () -> {
+                out.writeShort(ownerIndex);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        void writeTo(DataOutputStream target) throws IOException {
+            target.writeShort(count);
+            entries.writeTo(target);
+        }
+
+        private int add(String key, int tag, Body body) {
+            Integer index = indices.get(key);
+            if (index != null)
+                return index;
+            try {
+                out.writeByte(tag);
+                body.write();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            indices.put(key, count);
+            return count++;
+        }
+
+        private interface Body {
+            void write() throws IOException;
+        }
+    }
+
+    // Decoded instructions of a block, compared by content
+    private static final class Key {
+
+        private final int[] ops;
+        private final int hash;
+
+        Key(int[] ops) {
+            this.ops = ops;
+            this.hash = Arrays.hashCode(ops);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && Arrays.equals(ops, ((Key) other).ops);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -1,13 +1,33 @@
 package chip;
 
-import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.util.Random;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 public class Chip {
 
-	private char[] memory; // 4kb of 8-bit memory: At position 0x50: The "bios" fontset. At position 0x200: The start of every program.
+    // Saved state layout, version 3, in the buffer's byte order (big endian by default): memory (4096 bytes),
+    // V0-VF, I, pc, stack (16 chars), stackPointer, delay_timer, sound_timer (ints), frameCount, random (longs),
+    // keys (16 bytes), display (32 longs). Version 1 stored memory as 4096 chars, version 2 had no random state.
+    public static final int STATE_VERSION = 3;
+    public static final int STATE_SIZE = 4096 + (16 + 2 + 16) * 2 + 3 * 4 + 2 * 8 + 16 + 32 * 8;
+
+    // Increment of the SplitMix64 generator behind CXNN
+    static final long RANDOM_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private static final int MEMORY_SIZE = MemoryImage.PAGES * MemoryImage.PAGE_SIZE;
+
+    // Longest loop body, in instructions, that idle-loop detection looks at
+    private static final int IDLE_LOOP_LENGTH = 32;
+
+    // 4kb of 8-bit memory: At position 0x50: The "bios" fontset. At position 0x200: The start of every program.
+    // Held as 16 pages of 256 bytes mapped from the loaded ROM's shared image; a page is copied into a private
+    // one, and its bit set in privatePages, on the first write to it.
+    private MemoryImage image;
+    private byte[][] memory;
+    private int privatePages;
+    private byte[] loadedPage; // loadPage()'s copy of a shared page, kept while it matches the image
 
     private char[] V; // CPU registers: The Chip 8 has 15 8-bit general purpose registers named V0,V1 up to VE. The 16th register is used  for the ‘carry flag’.
 
@@ -27,17 +47,85 @@ public class Chip {
     // This timer to make a beeping sound
     private int sound_timer;
 
+    // Instructions executed per 60 Hz frame, i.e. the CPU clock divided by 60
+    private int cyclesPerFrame = 10;
+
+    // Frames completed by runFrame() since init()
+    private long frameCount;
+
+    // State of the random number generator used by CXNN; part of the machine state, so a seeded chip given the
+    // same input always runs the same way (see setSeed())
+    private long random;
+
     // This array will be the keyboard state
     private byte[] keys;
 
-    // The 64x32 pixels monochrome (black/white) display
-    private byte[] display;
+    // The 64x32 pixels monochrome (black/white) display, one long per row with x = 0 in the most significant bit
+    private long[] display;
 
     private boolean needDraw;
 
+    // One bit per display row changed since the last takeDirtyRows()
+    private int dirtyRows;
+
+    // Decoded-program cache: one packed instruction (see Decoder) per memory address, 0 until first executed.
+    // Paged like memory: a page is the image's shared one until a write touches an instruction in it.
+    private int[][] decoded;
+    private int privateDecoded;
+
+    // Basic-block recompiler: compiled blocks by start address and a bit per address that a block has covered
+    private boolean recompiler;
+    private Block[] blocks;
+    private long[] codeBytes;
+
+    // SHA-1 of the loaded ROM, so saved states can only be restored into the game they came from
+    private byte[] romHash;
+
+    // Instruction trace, null unless tracing was switched on with setTrace()
+    private TraceBuffer trace;
+
+    // Instructions executed per opcode family (high nibble), null unless counting was switched on with setOpcodeCounts()
+    private long[] opcodeCounts;
+
+    // Set while run-ahead executes frames that will be thrown away, so they leave no trace behind
+    private boolean speculative;
+
+    // Number of writes through writeMemory(), so restore() can tell whether memory needs copying back
+    private long memoryWrites;
+
+    // Idle-loop skipping (see idleInstructions()): the loop last closed by a backward jump, its length in
+    // instructions, whether its body only reads state, and the registers and instruction count within execute()
+    // when it last got back to its head
+    private boolean idleLoopSkipping = true;
+    private int idleHead;
+    private int idleJump;
+    private int idleLength;
+    private boolean idlePure;
+    private int idleAt;
+    private char idleI;
+    private char[] idleV;
+    private long idleInstructions;
+    private long waitingInstructions;
+
+    // Debugger attached to this chip, or null; its breakpoints and watchpoints are TRAP entries in the decoded
+    // cache, so nothing else pays for them
+    private Debugger debugger;
+
+    // Unwinds execute() when the debugger stops at a TRAP entry; thrown without a stack trace, so it does not allocate
+    private static final class Stop extends RuntimeException {
+
+        Stop() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Stop STOP = new Stop();
+
     // Resets the chip8 memory and pointers
     public void init() {
-        memory = new char[4096];
+        memory = new byte[MemoryImage.PAGES][];
+        decoded = new int[MemoryImage.PAGES][];
+        mapImage(MemoryImage.blank());
         V = new char[16];
         I = 0x0;
         pc = 0x200;
@@ -47,469 +135,740 @@ public class Chip {
 
         delay_timer = 0;
         sound_timer = 0;
+        frameCount = 0;
+        random = System.nanoTime() * RANDOM_GAMMA;
 
         keys = new byte[16];
 
-        display = new byte[64 * 32];
+        display = new long[32];
 
         needDraw = false;
-		
-		loadFontSet();
+        dirtyRows = 0xFFFFFFFF;
+
+        blocks = recompiler ? new Block[MEMORY_SIZE] : null;
+        codeBytes = recompiler ? new long[MEMORY_SIZE / 64] : null;
+        idleInstructions = 0;
+        waitingInstructions = 0;
     }
 
       // execute opcode
     public void run() {
-        // fetch Opcode
-        char opcode = (char)((memory[pc] << 8 | memory[pc + 1]));
-		System.out.println(Integer.toHexString(opcode) + " ");
+        // fetch the decoded instruction, decoding it only the first time pc reaches this address
+        int op = decoded[pc >> 8][pc & 0xFF];
+        if (op == Decoder.UNDECODED)
+            op = decodeAt(pc);
+        if (trace != null && !speculative)
+            trace.record(pc, readMemory(pc) << 8 | readMemory(pc + 1), I, TraceBuffer.hashRegisters(V));
+        if (opcodeCounts != null && !speculative)
+            opcodeCounts[readMemory(pc) >> 4]++;
+
+        interpret(op);
+    }
 
-		// decode opcode
-        switch (opcode & 0xF000) {
+    // Runs one frame of emulated time (1/60 s): a batch of cyclesPerFrame instructions followed by one timer tick
+    public void runFrame() {
+        execute(cyclesPerFrame);
+        finishFrame();
+    }
+
+    // Ends the frame: one timer tick. The Debugger runs frames in pieces and finishes them itself.
+    void finishFrame() {
+        tickTimers();
+        frameCount++;
+    }
 
-            case 0x0000: {
+    // Runs up to the given number of instructions, through compiled blocks when the recompiler is enabled,
+    // and returns how many were executed. Returns early, with pc on the instruction, if the debugger stops.
+    public int execute(int cycles) {
+        idleHead = -1; // timers and keys may have changed since the last call
+        if (!recompiler || trace != null || opcodeCounts != null) { // tracing and counting see every instruction, so they interpret
+            boolean skipIdle = idleLoopSkipping && trace == null && opcodeCounts == null;
+            int i = 0;
+            try {
+                for (; i < cycles; i++) {
+                    int from = pc;
+                    run();
+                    if (pc <= from) {
+                        if (pc == from && isWaitingForKey())
+                            return waited(cycles - i - 1, cycles); // blocked in FX0A for the rest of the frame
+                        if (skipIdle)
+                            i += idleInstructions(from, i + 1, cycles - i - 1);
+                    }
+                }
+            } catch (Stop e) {
+                return i;
+            }
+            return cycles;
+        }
 
-                switch (opcode & 0x00FF) {
+        int executed = 0;
+        Block block = null;
+        try {
+            while (executed < cycles) {
+                block = blocks[pc];
+                if (block == null)
+                    block = compileBlock(pc);
+
+                int[] ops = block.ops;
+                if (ops.length == 1) { // never compiled, see Block
+                    interpret(ops[0]);
+                    executed++;
+                } else if (ops.length > cycles - executed) { // the frame may end inside the block
+                    executed += interpretBlock(block, cycles - executed);
+                    if (executed == cycles)
+                        return cycles;
+                } else if (block.code != null) {
+                    executed += block.code.run(this);
+                } else {
+                    executed += interpretBlock(block, ops.length);
+                    if (++block.runs == Block.COMPILE_THRESHOLD)
+                        block.code = BlockCompiler.compile(ops);
+                }
+                if (pc <= block.end - 2) { // only the last instruction can jump
+                    if (pc == block.end - 2 && isWaitingForKey())
+                        return waited(cycles - executed, cycles);
+                    if (idleLoopSkipping)
+                        executed += idleInstructions(block.end - 2, executed, cycles - executed);
+                }
+            }
+        } catch (Stop e) {
+            return executed; // a TRAP is a block of its own
+        }
+        return executed;
+    }
 
-                    case 0x00E0: {//00E0: Clear the screen
+    // Interprets the given block from its start, for at most limit instructions, and returns how many ran
+    private int interpretBlock(Block block, int limit) {
+        int[] ops = block.ops;
+        int count = 0;
+        int i = 0;
+        while (count < limit) {
+            interpret(ops[i]);
+            count++;
+            if (i == ops.length - 1)
+                break;
+            i = (pc - block.start) >> 1; // the next instruction, or the one after it if this one skipped
+            if (i == ops.length)
+                break;
+        }
+        return count;
+    }
 
-                        for(int i=0; i < getDisplay().length; i++)
-                            display[i] = 0x0;
+    // Counts the instructions a blocked FX0A would have repeated for the rest of the frame, and returns cycles
+    private int waited(int remaining, int cycles) {
+        if (!speculative)
+            waitingInstructions += remaining;
+        return cycles;
+    }
 
-                        needDraw = true;
-                        pc+=2;
-                        ////System.outprintln("CLEARED SCREEN!");
-                        break;
-                    }
+    // Whether the program is blocked in FX0A: no key is down, so it executes that instruction again and again
+    // without any effect until setKeyMask() presses one. execute() stops as soon as it finds the chip blocked.
+    public boolean isWaitingForKey() {
+        if (pc >= MEMORY_SIZE - 1 || Decoder.kind(instructionAt(pc)) != Decoder.LD_K)
+            return false;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == 1)
+                return false;
+        }
+        return true;
+    }
 
-                    case 0x00EE: {//00EE: Retruns from sub
-                        stackPointer--;  // 16 levels of stack, decrease stack pointer to prevent overwrite
-                        pc = (char) stack[stackPointer]; // Put the stored return address from the stack back into the program counter
-                        pc += 2;
-                        ////System.outprintln("Returning to " + Integer.toHexString(pc).toUpperCase());
-                        break;
-                    }
+    // Lets the given number of frames pass while the chip is blocked in FX0A, with the same result as running
+    // them one by one: only the timers and the frame count move. Hosts use this instead of running (or pacing)
+    // frames in which nothing can happen.
+    public void skipWaitingFrames(long frames) {
+        if (!isWaitingForKey())
+            throw new IllegalStateException("The program is not waiting for a key");
+        delay_timer = (int) Math.max(0, delay_timer - frames);
+        sound_timer = (int) Math.max(0, sound_timer - frames);
+        frameCount += frames;
+    }
 
-                    default:
-                        System.err.println("Unsupported Opcode!");
-                        System.exit(0);
-                        break;
-                    }
+    // Called after the instruction at jumpAddress moved pc backwards (or left it in place), with the number of
+    // instructions executed so far in this execute() call and the number still to run. If that instruction is a
+    // 1NNN closing a loop whose body only reads state, and the registers are the same as when the loop last got
+    // here, the last iteration will repeat exactly until the frame ends: timers and keys only change between
+    // frames. Returns the instructions of those whole iterations, which are then skipped without running them;
+    // the remainder of the frame runs normally.
+    private int idleInstructions(int jumpAddress, int executed, int remaining) {
+        if (pc != idleHead || jumpAddress != idleJump) {
+            idleHead = pc;
+            idleJump = jumpAddress;
+            idleLength = (jumpAddress - pc) / 2 + 1;
+            idlePure = isPureLoop(pc, jumpAddress);
+            idleAt = -1;
+        }
+        if (!idlePure)
+            return 0;
+
+        // The loop can be left by skipping its 1NNN, to run anything before coming back. Any other backward jump on
+        // the way back moves the candidate above, and a visit that took more instructions than the loop holds
+        // cannot have stayed inside it either: only a pass through the body alone is repeated.
+        if (idleAt >= 0 && executed - idleAt <= idleLength && I == idleI && Arrays.equals(V, idleV)) {
+            int period = executed - idleAt;
+            int skipped = remaining - remaining % period;
+            if (!speculative)
+                idleInstructions += skipped;
+            idleAt = executed + skipped;
+            return skipped;
+        }
+        if (idleV == null)
+            idleV = new char[16];
+        System.arraycopy(V, 0, idleV, 0, 16);
+        idleI = I;
+        idleAt = executed;
+        return 0;
+    }
+
+    // Whether the code from head up to a 1NNN at jumpAddress that jumps back to head can only change V and I.
+    // Every instruction in between counts, whether or not the loop takes it.
+    private boolean isPureLoop(int head, int jumpAddress) {
+        int jump = opAt(jumpAddress);
+        if (Decoder.kind(jump) != Decoder.JP || Decoder.argument(jump) != head || jumpAddress - head > 2 * IDLE_LOOP_LENGTH)
+            return false;
+        for (int address = head; address < jumpAddress; address += 2) {
+            switch (Decoder.kind(opAt(address))) {
+                case Decoder.SE_NN:
+                case Decoder.SNE_NN:
+                case Decoder.SE_VY:
+                case Decoder.LD_NN:
+                case Decoder.ADD_NN:
+                case Decoder.LD_VY:
+                case Decoder.OR:
+                case Decoder.AND:
+                case Decoder.XOR:
+                case Decoder.ADD_VY:
+                case Decoder.SUB:
+                case Decoder.SHR:
+                case Decoder.SUBN:
+                case Decoder.SHL:
+                case Decoder.LD_I:
+                case Decoder.SKP:
+                case Decoder.SKNP:
+                case Decoder.LD_VX_DT:
+                case Decoder.ADD_I:
+                case Decoder.LD_F:
+                case Decoder.LD_V_MEM:
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    // Skips whole iterations of side-effect-free loops that cannot leave before the frame ends (on by default).
+    // The machine state after every frame is the same either way.
+    public void setIdleLoopSkipping(boolean enabled) {
+        idleLoopSkipping = enabled;
+    }
+
+    public boolean isIdleLoopSkipping() {
+        return idleLoopSkipping;
+    }
+
+    // Instructions skipped in idle loops since init(), not counting speculative frames (see setSpeculative())
+    public long getIdleInstructions() {
+        return idleInstructions;
+    }
+
+    // Instructions not run since init() because the program was blocked in FX0A for the rest of a frame, not
+    // counting speculative frames or frames passed with skipWaitingFrames()
+    public long getWaitingInstructions() {
+        return waitingInstructions;
+    }
+
+    // Switches between the interpreter and the basic-block recompiler
+    public void setRecompiler(boolean enabled) {
+        recompiler = enabled;
+        if (enabled && blocks == null) {
+            blocks = new Block[MEMORY_SIZE];
+            codeBytes = new long[MEMORY_SIZE / 64];
+        }
+    }
+
+    public boolean isRecompiler() {
+        return recompiler;
+    }
+
+    public void setCyclesPerFrame(int cycles) {
+        cyclesPerFrame = cycles;
+    }
+
+    public int getCyclesPerFrame() {
+        return cyclesPerFrame;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    // Makes CXNN draw the same numbers on every run; init() seeds from the clock
+    public void setSeed(long seed) {
+        random = seed;
+    }
+
+    // A number in [0, 255) from the generator state after it was advanced, like Random.nextInt(255) used to give.
+    // SplitMix64's output mix, then the high 32 bits scaled into range.
+    static int randomByte(long state) {
+        long z = state;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z ^= z >>> 31;
+        return (int) (((z >>> 32) * 255) >>> 32);
+    }
+
+    // Records every executed instruction into the given buffer; null switches tracing off
+    public void setTrace(TraceBuffer trace) {
+        this.trace = trace;
+    }
+
+    // Counts every executed instruction into counts[opcode >> 12] (16 entries), or stops counting if null.
+    // The array is written with plain stores by the thread running the chip, which must publish it to any other
+    // reader. Counting makes execute() interpret, without the recompiler or idle-loop skipping.
+    public void setOpcodeCounts(long[] counts) {
+        opcodeCounts = counts;
+    }
+
+    public TraceBuffer getTrace() {
+        return trace;
+    }
+
+    // Executes one decoded instruction
+    private void interpret(int op) {
+        int X = Decoder.x(op);
+        int Y = Decoder.y(op);
+        int arg = Decoder.argument(op); // NNN, NN or N depending on the instruction
+
+        switch (Decoder.kind(op)) {
+
+            case Decoder.CLS: {//00E0: Clear the screen
+                clearScreen();
+                pc+=2;
+                break;
+            }
 
+            case Decoder.RET: {//00EE: Retruns from sub
+                stackPointer--;  // 16 levels of stack, decrease stack pointer to prevent overwrite
+                pc = stack[stackPointer]; // Put the stored return address from the stack back into the program counter
+                pc += 2;
                 break;
             }
 
-            case 0x1000: {//1NNN: Jumps to address NNN
-                //int NNN = opcode & 0x0FFF;
-                pc = (char) (opcode & 0x0FFF);
-                ////System.outprintln("Jumping to " + Integer.toHexString(pc).toUpperCase());
+            case Decoder.JP: {//1NNN: Jumps to address NNN
+                pc = (char) arg;
                 break;
             }
 
-            case 0x2000: {//2NNN: Calls subroutine at NNN
+            case Decoder.CALL: {//2NNN: Calls subroutine at NNN
                 stack[stackPointer] = pc;
                 stackPointer++;
-                pc = (char) (opcode & 0x0FFF);
-                ////System.outprintln("Calling " + Integer.toHexString(pc) + " from " + Integer.toHexString(stack[stackPointer - 1]).toUpperCase());
+                pc = (char) arg;
                 break;
             }
 
-            case 0x3000: {//3XNN: Skips to next instruction if VX equal to NN
-                int x = (opcode & 0x0F00) >> 8;
-                int nn = (opcode & 0x00FF);
-                if(V[x] == nn) {
+            case Decoder.SE_NN: {//3XNN: Skips to next instruction if VX equal to NN
+                if(V[X] == arg) {
                     pc += 4;
-                    ////System.outprintln("Skipping next instruction (V[" + x +"] == " + nn + ")");
                 } else {
                     pc += 2;
-                    ////System.outprintln("Not skipping next instruction (V[" + x +"] ("+V[x]+") =/= " + nn + ")");
                 }
                 break;
             }
 
-            case 0x4000: {//4XNN: Skip next instruction if Vx != NN
-                int X = (opcode & 0x0F00) >> 8;
-                int NN = opcode & 0x00FF;
-                if( V[X] != NN) {
+            case Decoder.SNE_NN: {//4XNN: Skip next instruction if Vx != NN
+                if( V[X] != arg) {
                     pc += 4;
-                    ////System.outprintln("Skipping next instruction: V[" + X + "] == " + NN);
                 }
                 else {
                     pc += 2;
-                    ////System.outprintln("Not skipping next instruction (V[" + X + "] != " + NN + ")");
                 }
                 break;
             }
 
-            case 0x5000: {//5NNN: Skip next instruction if Vx = Vy.
-                int X = (opcode & 0x0F00) >> 8; // (take the third spot)
-                int Y = (opcode & 0x00F0) >> 4;
+            case Decoder.SE_VY: {//5NNN: Skip next instruction if Vx = Vy.
                 if (V[X] == V[Y]) {
                     pc += 4;
-                    ////System.outprintln("Skipping next instruction: V[" + X + "] == V[" + Y + "]");
                 }
                 else {
                     pc += 2;
-                    ////System.outprintln("Not skipping the next instruction: V[" + X + "] != V[" + Y + "]");
                 }
                 break;
             }
 
-            case 0x6000: { //6XNN: Set VX to NN, v = memory part of the registry, x = index of the registry, NN = value to which we set it.
-                int X = (opcode & 0x0F00) >> 8; // (take the third spot)
-                V[X] = (char) (opcode & 0x00FF); //(take last two nibble)
+            case Decoder.LD_NN: { //6XNN: Set VX to NN, v = memory part of the registry, x = index of the registry, NN = value to which we set it.
+                V[X] = (char) arg;
                 pc += 2;
-                ////System.outprintln("Setting V[" + X + "] to " + (int) V[X]);
                 break;
             }
 
-            case 0x7000: { //7XNN: Adds NN to VX
-                int X = (opcode & 0x0F00) >> 8;
-                int nn = opcode & 0x00FF;
-                //System.outprint("Adding " + nn + " to V[" + X + "] = ");
-                V[X] = (char) ((V[X] + nn) & 0xFF); // to avoid overload buffer
+            case Decoder.ADD_NN: { //7XNN: Adds NN to VX
+                V[X] = (char) ((V[X] + arg) & 0xFF); // to avoid overload buffer
                 pc += 2;
-                //System.outprint((int) V[X] + "\n");
                 break;
             }
 
-            case 0x8000: {//Contains more data in last nibble
-
-                switch (opcode & 0x000F) {
-
-                    case 0x0000: {//8XY0: Stores the value of register VY in register VX.
-                        int x = (opcode & 0x0F00) >> 8;
-                        int y = (opcode & 0x00F0) >> 4;
-                        V[x] = V[y];
-                        //////System.outprintln("Setting V["+x+"] = " + V[y]);
-                        pc += 2;
-                        break;
-                    }
+            case Decoder.LD_VY: {//8XY0: Stores the value of register VY in register VX.
+                V[X] = V[Y];
+                pc += 2;
+                break;
+            }
 
-                    case 0x0001: {//8XY1: Performs a bitwise OR on the values of Vx and Vy, then stores the result in Vx.
-                        int x = (opcode & 0x0F00) >> 8;
-                        int y = (opcode & 0x00F0) >> 4;
-                        V[x] = (char) ((V[x] | V[y]) & 0xFF);
-                        //////System.outprintln("Performs a bitwise OR on the values of V[" + x + "] and V[" + y + "] and stores result in Vx");
-                        pc += 2;
-                        break;
-                    }
+            case Decoder.OR: {//8XY1: Performs a bitwise OR on the values of Vx and Vy, then stores the result in Vx.
+                V[X] = (char) ((V[X] | V[Y]) & 0xFF);
+                pc += 2;
+                break;
+            }
 
-                    case 0x0002 :{//8XY2: Set Vx = Vx AND Vy.
-                        int x = (opcode & 0x0F00) >> 8;
-                        int y = (opcode & 0x00F0) >> 4;
-                        V[x] = (char) (V[x] & V[y]);
-                        //////System.outprintln("Performs a bitwise AND on the values of V[" + x + "] and V[" + y + "] and stores result in Vx");
-                        pc += 2;
-                        break;
-                    }
+            case Decoder.AND: {//8XY2: Set Vx = Vx AND Vy.
+                V[X] = (char) (V[X] & V[Y]);
+                pc += 2;
+                break;
+            }
 
-                    case 0x0003 :{//8XY3: Set Vx = Vx XOR Vy.
-                        int x = (opcode & 0x0F00) >> 8;
-                        int y = (opcode & 0x00F0) >> 4;
-                        V[x] = (char) ((V[x] ^ V[y]) & 0xFF);
-                        //////System.outprintln("Performs a bitwise XOR on the values of V[" + x + "] and V[" + y + "] and stores result in Vx");
-                        pc += 2;
-                        break;
-                    }
+            case Decoder.XOR: {//8XY3: Set Vx = Vx XOR Vy.
+                V[X] = (char) ((V[X] ^ V[Y]) & 0xFF);
+                pc += 2;
+                break;
+            }
 
-                    case 0x0004: {//8XY4: The values of Vx and Vy are added together. If the result is greater than 8 bits (i.e., > 255,)
+            case Decoder.ADD_VY: {//8XY4: The values of Vx and Vy are added together. If the result is greater than 8 bits (i.e., > 255,)
                                   // VF is set to 1, otherwise 0. Only the lowest 8 bits of the result are kept, and stored in Vx.
-                        int x = (opcode & 0x0F00) >> 8;
-                        int y = (opcode & 0x00F0) >> 4;
-                        //V[0xF] = V[y] > (0xFF - V[x]) ? (char) 1 : (char) 0;
-                        if(V[y] > (0xFF - V[x]))
-                            V[0xF] = 1; //carry
-                        else
-                            V[0xF] = 0;
-
-                        V[x] = (char) ((V[x] + V[y]) & 0xFF);
-                        pc += 2;
-                        //////System.outprintln("V[" + y + "] > 0xFF - V[" + x + "] ? carry = " + V[0xF]);
-                        break;
-                    }
+                if(V[Y] > (0xFF - V[X]))
+                    V[0xF] = 1; //carry
+                else
+                    V[0xF] = 0;
 
-                    case 0x0005: {//8XY5: Set Vx = Vx - Vy, set VF = NOT borrow.
-                        int x = (opcode & 0x0F00) >> 8;
-                        int y = (opcode & 0x00F0) >> 4;
-                        ////System.outprint("V[" + x + "] = " + (int)V[x] + " V[" + y + "] = " + (int)V[y] + ", ");
-                        if(V[x] > V[y]) {
-                            V[0xF] = 1;
-                        //    ////System.outprintln("No Borrow");
-                        } else {
-                            V[0xF] = 0;
-                        //    ////System.outprintln("Borrow");
-                        }
-                        V[x] = (char)((V[x] - V[y]) & 0xFF);
-                        pc += 2;
-                        break;
-                    }
-
-                    case 0x0006: {//8XY6: Shift VX right by one, VF is set to the least significant bit of VX
-                        int x = (opcode & 0x0F00) >> 8;
-                        V[0xF] = (char) (V[x] & 0x1);
-                        V[x] >>= 1;
-                        //////System.outprintln("Shift V[" + x + "] right by one.");
-                        pc += 2;
-                        break;
-                    }
-
-                    case 0x0007: {//8XY7: Set Vx = Vy - Vx, set VF = NOT borrow.
-                        int x = (opcode & 0x0F00) >> 8;
-                        int y = (opcode & 0x00F0) >> 4;
+                V[X] = (char) ((V[X] + V[Y]) & 0xFF);
+                pc += 2;
+                break;
+            }
 
-                        if(V[x] > V[y])
-                            V[0xF] = 0;
-                        else
-                            V[0xF] = 1;
+            case Decoder.SUB: {//8XY5: Set Vx = Vx - Vy, set VF = NOT borrow.
+                if(V[X] > V[Y]) {
+                    V[0xF] = 1;
+                } else {
+                    V[0xF] = 0;
+                }
+                V[X] = (char)((V[X] - V[Y]) & 0xFF);
+                pc += 2;
+                break;
+            }
 
-                        V[x] = (char)((V[y] - V[x]) & 0xFF);
-                        //////System.outprintln("V[" + x + "] = V[" + y + "] - V[" + x + "], Applies Borrow if needed");
+            case Decoder.SHR: {//8XY6: Shift VX right by one, VF is set to the least significant bit of VX
+                V[0xF] = (char) (V[X] & 0x1);
+                V[X] >>= 1;
+                pc += 2;
+                break;
+            }
 
-                        pc += 2;
-                        break;
-                    }
+            case Decoder.SUBN: {//8XY7: Set Vx = Vy - Vx, set VF = NOT borrow.
+                if(V[X] > V[Y])
+                    V[0xF] = 0;
+                else
+                    V[0xF] = 1;
 
-                    case 0x000E: {//8XYE: Set Vx = Vx SHL 1.
-                        int x = (opcode & 0x0F00) >> 8;
-                        //V[0xF] = (char) (V[x] >> 7);
-                        //V[x] <<= 1;
-                        ///*
-                        V[0xF] = (char)(V[x] & 0x80);
-				        V[x] = (char)(V[x] << 1);
-                        //*/
-                        //////System.outprintln("Shift V[ " + x + "] << 1 and VF to MSB of VX");
-                        pc += 2;
-                        break;
-                    }
+                V[X] = (char)((V[Y] - V[X]) & 0xFF);
 
-                    default:
-                        System.err.println("Unsupported opcode!");
-                        System.exit(0);
-                        break;
+                pc += 2;
+                break;
+            }
 
-                }
+            case Decoder.SHL: {//8XYE: Set Vx = Vx SHL 1.
+                V[0xF] = (char)(V[X] & 0x80);
+                V[X] = (char)(V[X] << 1);
+                pc += 2;
                 break;
             }
-				
-			case 0xA000: {//ANNN: Set I to NNN
-			    int NNN = (opcode & 0X0FFF);
-                I = (char) NNN;
+
+			case Decoder.LD_I: {//ANNN: Set I to NNN
+                I = (char) arg;
                 pc += 2;
-                //////System.outprintln("Setting I to 0x" + Integer.toHexString(I));
                 break;
             }
 
-            case 0xB000: {//BNNN Jumps to the address NNN plus V0.
-                //pc = (char) ((opcode & 0x0FFF) + V[0]);
-                ////System.outprint("Jumps to the address ");
-                int NNN = opcode & 0x0FFF;
+            case Decoder.JP_V0: {//BNNN Jumps to the address NNN plus V0.
                 int extra = V[0] & 0xFF;
-                //System.outprint(NNN + " + " + extra + "\n");
-                pc = (char) (NNN + extra);
+                pc = (char) (arg + extra);
                 break;
             }
 
-            case 0xC000: {//CXNN: Set VX to a random number and NN
-                int X = (opcode & 0x0F00) >> 8;
-                int NN = opcode & 0x00FF;
-                int randomNumber = new Random().nextInt(255) & NN;
-                ////System.outprintln("V[" + X + "] has been set to (randomised) " + randomNumber);
+            case Decoder.RND: {//CXNN: Set VX to a random number and NN
+                random += RANDOM_GAMMA;
+                int randomNumber = randomByte(random) & arg;
                 V[X] = (char)randomNumber;
                 pc += 2;
                 break;
             }
-				
-			case 0xD000: {//DXYN: Display n-byte sprite starting at memory location I at (Vx, Vy), set VF = collision.
-                int X = V[(opcode & 0x0F00) >> 8];
-                int Y = V[(opcode & 0x00F0) >> 4];
-                int height = opcode & 0x000F;//                                                                           HEX    BIN        Sprite
-                 /*The interpreter reads n bytes from memory, starting at the address stored in I.        memory[I]     = 0x3C   00111100     ****
-                 These bytes are then displayed as sprites on screen at coordinates (Vx, Vy).             memory[I + 1] = 0xC3   11000011   **    **
-                 Sprites are XORed onto the existing screen. If this causes any pixels to be erased,      memory[I + 2] = 0xFF   11111111   ********
-                 VF is set to 1, otherwise it is set to 0. If the sprite is positioned so part of it
-                 is outside the coordinates of the display, it wraps around to the opposite side of the
-                 screen. See instruction 8xy3 for more information on XOR, and section 2.4, Display, for more information on the Chip-8 screen and sprites. */
-
-                V[0xF] = 0; // Reset register VF
 
-                for(int yline = 0; yline < height; yline++) {
-                    int pixel = memory[I + yline]; // Fetch the pixel value from the memory starting at location I
-                    for(int xline = 0; xline < 8; xline++) {
-                        if ((pixel & (0x80 >> xline)) != 0) { // (0x80 >> xline) scan through the byte, one bit at the time
-                            int totalX = X + xline;
-                            int totalY = Y + yline;
+			case Decoder.DRW: {//DXYN: Display n-byte sprite starting at memory location I at (Vx, Vy), set VF = collision.
+                drawSprite(X, Y, arg);
+                pc += 2;
+                break;
+			}
 
-                            totalX = totalX % 64;
-                            totalY = totalY % 32;
+            case Decoder.SKP: {//EX9E: Checks the keyboard, and if the key corresponding to the value of Vx is currently in the down position
+                if(keys[V[X]] != 0) {
+                    pc += 4;
+                }
+                else {
+                    pc += 2;
+                }
+                break;
+            }
 
-                            int index = (totalY * 64) + totalX;
+            case Decoder.SKNP: {//EXA1: Skip next instruction if key with the value of Vx is not pressed.
+                int key = V[X];
+                if(keys[key] != 0) {
+                    pc += 2;
+                }
+                else {
+                    pc += 4;
+                }
+                break;
+            }
 
-                            if(display[index] == 1) // Check if the pixel on the display is set to 1
-                                V[0xF] = 1; // to register the collision by setting the VF register
+            case Decoder.E_NOP:
+                break;
 
-                            display[index] ^= 1; // Set the pixel value by using XOR
-                        }
+            case Decoder.LD_K: {//FX00A: Wait for a key press, store the value of the key in Vx.
+                for(int i=0; i<keys.length; i++){
+                    if(keys[i] == 1) {
+                        V[X] = (char) i;
+                        pc += 2;
+                        break;
                     }
                 }
+                break;
+            }
+
+            case Decoder.LD_VX_DT: {//FX07: Set Vx = delay timer value.
+                V[X] = (char) delay_timer;
                 pc += 2;
-                needDraw = true;
-                ////System.outprintln("Drawing at V[" + ((opcode & 0x0F00) >> 8) + "] = " + X + ", V[" + ((opcode & 0x00F0) >> 4) + "] = " + Y);
                 break;
-			}
+            }
 
-            case 0xE000: {
+            case Decoder.LD_DT: {//FX15: Set delay timer = Vx.
+                delay_timer = V[X];
+                pc += 2;
+                break;
+            }
 
-                switch (opcode & 0x0FF) {
+            case Decoder.LD_ST: {//FX18: Set sound timer = Vx.
+                sound_timer = V[X];
+                pc += 2;
+                break;
+            }
 
-                    case 0x009E: {//EX9E: Checks the keyboard, and if the key corresponding to the value of Vx is currently in the down position
-                        int x = (opcode & 0x0F00) >> 8;
-                        if(keys[V[x]] != 0) {
-                            pc += 4;
-                        }
-                        else {
-                            pc += 2;
-                            //System.outprint("Not- ");
-                        }
-                        ////System.outprintln("skipping the next instruction as key[V[" + x + "]] = " + keys[V[x]]);
-                        break;
-                    }
+            case Decoder.ADD_I: {//FX1E: Set I = I + Vx.
+                I = (char) (I + V[X]);
+                pc += 2;
+                break;
+            }
 
-                    case 0x00A1: {//EXA1: Skip next instruction if key with the value of Vx is not pressed.
-                        int x = (opcode & 0x0F00) >> 8;
-                        int key = V[x];
-                        if(keys[key] != 0) {
-                            pc += 2;
-                            //System.outprint("Not ");
-                        }
-                        else {
-                            pc += 4;
-                        }
-                        ////System.outprintln("skipping the next instruction as key[V[" + x + "]] = " + keys[V[x]]);
-                        break;
-                    }
+            case Decoder.LD_F: {//FX29: Sets I to the location of the sprite for the character VX (fontset)
+                int character = V[X];
+                I = (char)(0x050 + (character * 5));
+                pc += 2;
+                break;
+            }
 
-                }
+            case Decoder.LD_B: {//FX33 Store a binary-coded decimal value VX in I, I+1 and I+2
+                storeBcd(X);
+                pc += 2;
                 break;
             }
 
+            case Decoder.LD_MEM_V: {//FX55: Stores V0 to VX in memory starting at address I
+                storeRegisters(X);
+                pc += 2;
+                break;
+            }
 
-            case 0xF000: {
+            case Decoder.LD_V_MEM:  {//Fx65 Read registers V0 through Vx from memory starting at location I.
+                loadRegisters(X);
+                pc += 2;
+                break;
+            }
 
-                switch (opcode & 0x00FF) {
+            case Decoder.TRAP: { // the debugger wants to look at this instruction before it runs
+                int original = instructionAt(pc);
+                if (debugger.stops(pc, original, I, stackPointer))
+                    throw STOP;
+                interpret(original);
+                break;
+            }
 
-                    case 0x000A: {//FX00A: Wait for a key press, store the value of the key in Vx.
-                        int x = (opcode & 0x0F00) >> 8;
+			default:
+				unsupportedOpcode();
+				break;
+        }
+    }
 
-                        for(int i=0; i<keys.length; i++){
-                            if(keys[i] == 1) {
-                                V[x] = (char) i;
-                                pc += 2;
-                                break;
-                            }
-                        }
-                        ////System.outprintln("Waited for a key press and then store the value of the key in V[" + x + "]");
-                        break;
-                    }
+    // Finds the basic block starting at the given address; it is interpreted until it has run often enough to
+    // be compiled (see Block)
+    private Block compileBlock(int start) {
+        int[] ops = new int[Block.MAX_LENGTH];
+        int length = 0;
+        int address = start;
+        while (true) {
+            int op = opAt(address);
+            int kind = Decoder.kind(op);
+            if (kind == Decoder.TRAP && length > 0)
+                break;
+            ops[length++] = op;
+            address += 2;
+            if (length == Block.MAX_LENGTH || address + 1 >= MEMORY_SIZE)
+                break;
+            if (Block.isSkip(kind)) {
+                int skipped = opAt(address);
+                if (!Block.canBeSkipped(Decoder.kind(skipped)))
+                    break;
+                ops[length++] = skipped;
+                address += 2;
+                if (Block.isTerminator(Decoder.kind(skipped)) || length == Block.MAX_LENGTH || address + 1 >= MEMORY_SIZE)
+                    break;
+            } else if (Block.isTerminator(kind)) {
+                break;
+            }
+        }
 
-                    case 0x0007: {//FX07: Set Vx = delay timer value.
-                        int x = (opcode & 0x0F00) >> 8;
-                        V[x] = (char) delay_timer;
-                        pc += 2;
-                        ////System.outprintln("Set V[" + x + "] = " + delay_timer);
-                        break;
-                    }
+        Block block = new Block(start, Arrays.copyOf(ops, length));
+        blocks[start] = block;
+        for (int a = start; a < block.end; a++)
+            codeBytes[a >> 6] |= 1L << a;
+        return block;
+    }
 
-                    case 0x0015: {//FX15: Set delay timer = Vx.
-                        int x = (opcode & 0x0F00) >> 8;
-                        delay_timer = V[x];
-                        pc += 2;
-                        ////System.outprintln("Set delay_timer to V[" + x + "] = " + (int)V[x]);
-                        break;
-                    }
+    // Instruction methods that compiled blocks call with the operands as constants (see BlockCompiler), one per
+    // instruction the compiler handles; they do what interpret() does for the same instruction.
 
-                    case 0x0018: {//FX18: Set sound timer = Vx.
-                        int x = (opcode & 0x0F00) >> 8;
-                        sound_timer = V[x];
-                        pc += 2;
-                        ////System.outprintln("Set sound timer = " + V[x]);
-                        break;
-                    }
+    private void cls() { clearScreen(); pc += 2; }
 
-                    case 0x001E: {//FX1E: Set I = I + Vx.
-                        int x = (opcode & 0x0F00) >> 8;
-                        ////System.outprintln("Set I = " + Integer.toHexString(I).toUpperCase() + " V[ " + x + "]");
-                        I = (char) (I + V[x]);
-                        pc += 2;
-                        break;
-                    }
+    private void ret() { stackPointer--; pc = (char) (stack[stackPointer] + 2); }
 
-                    case 0x0029: {//FX29: Sets I to the location of the sprite for the character VX (fontset)
-                        int x = (opcode & 0x0F00) >> 8;
-                        int character = V[x];
-                        I = (char)(0x050 + (character * 5));
-                        ////System.outprintln("Setting I to Character V[" + x + "] = " + (int)V[x] + " Offset to 0x" + Integer.toHexString(I).toUpperCase());
-                        pc += 2;
-                        break;
-                    }
+    private void jp(int nnn) { pc = (char) nnn; }
 
-                    case 0x0033: {//FX33 Store a binary-coded decimal value VX in I, I+1 and I+2
-                        int x = (opcode & 0x0F00) >> 8;
-                        int value = V[x];
-                        int hundreds = (value - (value % 100)) / 100;
-                        value -= hundreds * 100;
-                        int tens = (value - (value % 10))/ 10;
-                        value -= tens * 10;
-                        memory[I] = (char)hundreds;
-                        memory[I + 1] = (char)tens;
-                        memory[I + 2] = (char)value;
-                        ////System.outprintln("Storing Binary-Coded Decimal V[" + x + "] = " + (int)(V[(opcode & 0x0F00) >> 8]) + " as { " + hundreds+ ", " + tens + ", " + value + "}");
-                        pc += 2;
-                        break;
-                    }
+    private void call(int nnn) { stack[stackPointer] = pc; stackPointer++; pc = (char) nnn; }
 
-                    case 0x0055: {//FX55: Stores V0 to VX in memory starting at address I
-                        int x = (opcode & 0x0F00) >> 8;
+    // Skips return whether they skipped, for the compiled code to branch on
+    private boolean seNn(int x, int nn) { return skip(V[x] == nn); }
 
-                        for(int i=0; i<=x; i++){
-                            memory[I + i] = V[i];
-                        }
+    private boolean sneNn(int x, int nn) { return skip(V[x] != nn); }
 
-                        ////System.outprintln("Setting Memory[" + Integer.toHexString(I & 0xFFFF).toUpperCase() + " + n] = V[0] to V[x]");
-                        pc += 2;
-                        break;
-                    }
+    private boolean seVy(int x, int y) { return skip(V[x] == V[y]); }
 
-                    case 0x0065:  {//Fx65 Read registers V0 through Vx from memory starting at location I.
-                        int x = (opcode & 0x0F00) >> 8;
-                        for(int i = 0; i <= x; i++) {
-                            V[i] = memory[I + i];
-                        }
-                        ////System.outprintln("Setting V[0] to V[" + x + "] to the values of merory[0x" + Integer.toHexString(I & 0xFFFF).toUpperCase() + "]");
+    private boolean skp(int x) { return skip(keys[V[x]] != 0); }
 
-                        // On the original interpreter, when the operation is done, I = I + X + 1.
-                        I = (char) (I + x + 1);
+    private boolean sknp(int x) { return skip(keys[V[x]] == 0); }
 
-                        pc += 2;
-                        break;
-                    }
+    private boolean skip(boolean taken) { pc += taken ? 4 : 2; return taken; }
 
-                    default:
-                        System.err.println("Unsupported Opcode!");
-                        System.exit(0);
-                        break;
+    private void ldNn(int x, int nn) { V[x] = (char) nn; pc += 2; }
 
-                }
-                break;
+    private void addNn(int x, int nn) { V[x] = (char) ((V[x] + nn) & 0xFF); pc += 2; }
 
-            }
+    private void ldVy(int x, int y) { V[x] = V[y]; pc += 2; }
 
+    private void or(int x, int y) { V[x] = (char) ((V[x] | V[y]) & 0xFF); pc += 2; }
 
-			default:
-				System.err.println("Unsupported opcode!");
-				System.exit(0);
-				break;	
+    private void and(int x, int y) { V[x] = (char) (V[x] & V[y]); pc += 2; }
+
+    private void xor(int x, int y) { V[x] = (char) ((V[x] ^ V[y]) & 0xFF); pc += 2; }
+
+    private void ldI(int nnn) { I = (char) nnn; pc += 2; }
+
+    private void drw(int x, int y, int n) { drawSprite(x, y, n); pc += 2; }
+
+    private void ldVxDt(int x) { V[x] = (char) delay_timer; pc += 2; }
+
+    private void ldDt(int x) { delay_timer = V[x]; pc += 2; }
+
+    private void ldSt(int x) { sound_timer = V[x]; pc += 2; }
+
+    private void addI(int x) { I = (char) (I + V[x]); pc += 2; }
+
+    private void ldF(int x) { I = (char) (0x050 + (V[x] * 5)); pc += 2; }
+
+    private void ldVMem(int x) { loadRegisters(x); pc += 2; }
+
+    // Drops the compiled blocks holding the given address. Only those go: programs keep variables next to their
+    // code, and dropping the whole page on every such write would keep its blocks from ever getting hot.
+    private void invalidateBlocks(int address) {
+        for (int start = Math.max(0, address - Block.MAX_LENGTH * 2 + 1); start <= address; start++) {
+            Block block = blocks[start];
+            if (block != null && block.end > address)
+                blocks[start] = null;
         }
+    }
+
+    private void clearScreen() {
+        Arrays.fill(display, 0L);
 
+        needDraw = true;
+        dirtyRows = 0xFFFFFFFF;
+    }
+
+    private void drawSprite(int X, int Y, int height) {
+        int vx = V[X];
+        int vy = V[Y];
+        //                                                                                                                 HEX    BIN        Sprite
+         /*The interpreter reads n bytes from memory, starting at the address stored in I.        memory[I]     = 0x3C   00111100     ****
+         These bytes are then displayed as sprites on screen at coordinates (Vx, Vy).             memory[I + 1] = 0xC3   11000011   **    **
+         Sprites are XORed onto the existing screen. If this causes any pixels to be erased,      memory[I + 2] = 0xFF   11111111   ********
+         VF is set to 1, otherwise it is set to 0. If the sprite is positioned so part of it
+         is outside the coordinates of the display, it wraps around to the opposite side of the
+         screen. See instruction 8xy3 for more information on XOR, and section 2.4, Display, for more information on the Chip-8 screen and sprites. */
+
+        V[0xF] = 0; // Reset register VF
+
+        int shift = vx % 64;
+        for(int yline = 0; yline < height; yline++) {
+            int pixel = readMemory(I + yline); // Fetch the sprite row from the memory starting at location I
+            long row = Long.rotateRight((long) pixel << 56, shift); // Move it to column Vx, wrapping around to the left edge
+            int totalY = (vy + yline) % 32;
+
+            if((display[totalY] & row) != 0) // Check if any of the pixels on the display is already set
+                V[0xF] = 1; // to register the collision by setting the VF register
+
+            display[totalY] ^= row; // Set the pixel values by using XOR
+            dirtyRows |= 1 << totalY;
+        }
+        needDraw = true;
+    }
+
+    private void storeBcd(int X) {
+        int value = V[X];
+        int hundreds = (value - (value % 100)) / 100;
+        value -= hundreds * 100;
+        int tens = (value - (value % 10))/ 10;
+        value -= tens * 10;
+        writeMemory(I, (char)hundreds);
+        writeMemory(I + 1, (char)tens);
+        writeMemory(I + 2, (char)value);
+    }
+
+    private void storeRegisters(int X) {
+        for(int i=0; i<=X; i++){
+            writeMemory(I + i, V[i]);
+        }
+    }
+
+    private void loadRegisters(int X) {
+        for(int i = 0; i <= X; i++) {
+            V[i] = (char) readMemory(I + i);
+        }
+
+        // On the original interpreter, when the operation is done, I = I + X + 1.
+        I = (char) (I + X + 1);
+    }
+
+    private void unsupportedOpcode() {
+        throw new ChipFault("Unsupported opcode", pc, readMemory(pc) << 8 | readMemory(pc + 1));
+    }
+
+    // Counts the delay and sound timers down by one; called once per frame at 60 Hz
+    public void tickTimers() {
         if(sound_timer > 0) {
             sound_timer--;
             //Audio.playSound("./beep.wav");
@@ -518,44 +877,308 @@ public class Chip {
             delay_timer--;
     }
 
+    // The decoded instruction at the given address, decoding it if it was not yet
+    private int opAt(int address) {
+        int op = decoded[address >> 8][address & 0xFF];
+        return op != Decoder.UNDECODED ? op : decodeAt(address);
+    }
+
+    // Decodes the instruction at the given address and caches it in the decoded-program table, or a TRAP entry
+    // in the chip's own copy of the page if the debugger wants one there
+    private int decodeAt(int address) {
+        int op = Decoder.decode(readMemory(address) << 8 | readMemory(address + 1));
+        if (debugger != null && debugger.traps(address, op)) {
+            privateDecodedPage(address >> 8)[address & 0xFF] = Decoder.TRAP_ENTRY;
+            return Decoder.TRAP_ENTRY;
+        }
+        decoded[address >> 8][address & 0xFF] = op;
+        return op;
+    }
+
+    // The decoded instruction at the given address, looking through a TRAP entry
+    private int instructionAt(int address) {
+        int op = opAt(address);
+        return Decoder.kind(op) != Decoder.TRAP ? op : Decoder.decode(readMemory(address) << 8 | readMemory(address + 1));
+    }
+
+    void setDebugger(Debugger debugger) {
+        this.debugger = debugger;
+        refreshTraps();
+    }
+
+    // Puts TRAP entries where the debugger now wants them and takes them out elsewhere, after its breakpoints or
+    // watchpoints changed. Addresses not decoded yet get theirs from decodeAt(). Compiled blocks are dropped, as
+    // they hold the instructions themselves.
+    void refreshTraps() {
+        for (int page = 0; page < MemoryImage.PAGES; page++) {
+            for (int offset = 0; offset < MemoryImage.PAGE_SIZE; offset++) {
+                int op = decoded[page][offset];
+                if (op == Decoder.UNDECODED)
+                    continue;
+                int address = page << 8 | offset;
+                boolean trapped = Decoder.kind(op) == Decoder.TRAP;
+                boolean wanted = debugger != null && debugger.traps(address, trapped ? instructionAt(address) : op);
+                if (wanted != trapped)
+                    privateDecodedPage(page)[offset] = wanted ? Decoder.TRAP_ENTRY : Decoder.UNDECODED;
+            }
+        }
+        if (blocks != null)
+            Arrays.fill(blocks, null);
+        if (codeBytes != null)
+            Arrays.fill(codeBytes, 0L);
+    }
+
+    // Forgets every decoded instruction and compiled block, after memory was replaced wholesale. A decoded page
+    // stays shared while its memory page and the next one (which its last instruction reaches into) are shared.
+    private void clearCaches() {
+        memoryWrites++;
+        for (int page = 0; page < MemoryImage.PAGES; page++) {
+            int pages = 1 << page | (page + 1 < MemoryImage.PAGES ? 1 << (page + 1) : 0);
+            if ((privatePages & pages) == 0) {
+                decoded[page] = image.decoded[page];
+                privateDecoded &= ~(1 << page);
+            } else {
+                privateDecodedPage(page);
+                Arrays.fill(decoded[page], Decoder.UNDECODED);
+            }
+        }
+        if (blocks != null)
+            Arrays.fill(blocks, null);
+        if (codeBytes != null)
+            Arrays.fill(codeBytes, 0L);
+        if (debugger != null)
+            refreshTraps();
+    }
+
+    // Maps every page of the image, dropping all private pages
+    private void mapImage(MemoryImage image) {
+        this.image = image;
+        System.arraycopy(image.pages, 0, memory, 0, MemoryImage.PAGES);
+        privatePages = 0;
+        romHash = image.romHash;
+        clearCaches();
+    }
+
+    private int readMemory(int address) {
+        return memory[address >> 8][address & 0xFF] & 0xFF;
+    }
+
+    // Every memory write goes through here so shared pages are copied before they change, and cached
+    // instructions overlapping the address are decoded again
+    private void writeMemory(int address, int value) {
+        int page = address >> 8;
+        if ((privatePages & (1 << page)) == 0) {
+            memory[page] = memory[page].clone();
+            privatePages |= 1 << page;
+        }
+        memory[page][address & 0xFF] = (byte) value;
+        memoryWrites++;
+
+        privateDecodedPage(page)[address & 0xFF] = Decoder.UNDECODED;
+        if (address > 0)
+            privateDecodedPage((address - 1) >> 8)[(address - 1) & 0xFF] = Decoder.UNDECODED;
+
+        if (codeBytes != null && (codeBytes[address >> 6] & 1L << address) != 0)
+            invalidateBlocks(address);
+    }
+
+    // The chip's own decoded page, copied from the shared one the first time it is needed
+    private int[] privateDecodedPage(int page) {
+        if ((privateDecoded & (1 << page)) == 0) {
+            decoded[page] = image.decoded[page].clone();
+            privateDecoded |= 1 << page;
+        }
+        return decoded[page];
+    }
+
+    // Number of memory pages this chip has its own copy of; the others are shared with the ROM's image
+    public int getPrivatePageCount() {
+        return Integer.bitCount(privatePages);
+    }
+
+    // Unpacked copy of the display with one byte per pixel, for callers that still index it as y * 64 + x
     public byte[] getDisplay () {
+        byte[] pixels = new byte[64 * 32];
+        for(int y = 0; y < 32; y++) {
+            for(int x = 0; x < 64; x++)
+                pixels[y * 64 + x] = (byte) ((display[y] >>> (63 - x)) & 1);
+        }
+        return pixels;
+    }
+
+    // The display rows themselves, see isPixelSet() for the bit layout
+    public long[] getDisplayRows() {
         return display;
     }
 
-    public void loadProgram(String c8File) {
-		DataInputStream inputStream = null;
-		
-        try {
-            inputStream = new DataInputStream(new FileInputStream(new File(c8File)));
-
-            int offset = 0;
-            while (inputStream.available() > 0) {
-                // Program counter starts at 0x200               // ffffffc -> fc
-                memory[0x200 + offset] = (char) (inputStream.readByte() & 0xFF); 
-                offset++;
-            }
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(0);
-        } finally {
-				if (inputStream != null) {
-						try {
-							inputStream.close();
-						} catch (Exception e) {
-							e.printStackTrace();
-						}
-				}
-		}
+    public static boolean isPixelSet(long[] rows, int x, int y) {
+        return (rows[y] >>> (63 - x) & 1) != 0;
+    }
+
+    // Reads the ROM file in one go, see RomLibrary.readRom()
+    public void loadProgram(String c8File) throws IOException {
+        loadProgram(RomLibrary.readRom(Paths.get(c8File)));
+    }
 
+    // Resets memory to the font plus the ROM at 0x200. Chips loading the same bytes share the pages (see MemoryImage).
+    public void loadProgram(byte[] rom) {
+        mapImage(MemoryImage.forRom(rom));
     }
-	
+
+    // The font is part of every memory image; this only writes it back where a program overwrote it
 	public void loadFontSet() {
 		for(int i=0; i < ChipData.fontset.length; i++) {
-			memory[0x50 + i] = (char) ChipData.fontset[i];
+			if (readMemory(0x50 + i) != ChipData.fontset[i])
+				writeMemory(0x50 + i, ChipData.fontset[i]);
 		}
 	}
 
+    public byte[] getRomHash() {
+        return romHash.clone();
+    }
+
+    // Writes the complete machine state at the buffer's position using the fixed layout described at STATE_SIZE.
+    // Uses absolute puts only, so it does not allocate and can run every frame (see RewindBuffer).
+    public void saveState(ByteBuffer buffer) {
+        int p = buffer.position();
+        for (int page = 0; page < MemoryImage.PAGES; page++, p += MemoryImage.PAGE_SIZE)
+            buffer.put(p, memory[page], 0, MemoryImage.PAGE_SIZE);
+        for (int i = 0; i < V.length; i++, p += 2)
+            buffer.putChar(p, V[i]);
+        buffer.putChar(p, I);
+        buffer.putChar(p + 2, pc);
+        p += 4;
+        for (int i = 0; i < stack.length; i++, p += 2)
+            buffer.putChar(p, stack[i]);
+        buffer.putInt(p, stackPointer);
+        buffer.putInt(p + 4, delay_timer);
+        buffer.putInt(p + 8, sound_timer);
+        buffer.putLong(p + 12, frameCount);
+        buffer.putLong(p + 20, random);
+        p += 28;
+        buffer.put(p, keys, 0, keys.length);
+        p += keys.length;
+        for (int i = 0; i < display.length; i++, p += 8)
+            buffer.putLong(p, display[i]);
+        buffer.position(p);
+    }
+
+    // Restores a state written by saveState(); the ROM hash is checked by the caller (see SaveStateFile)
+    public void loadState(ByteBuffer buffer) {
+        int p = buffer.position();
+        for (int page = 0; page < MemoryImage.PAGES; page++, p += MemoryImage.PAGE_SIZE)
+            loadPage(page, buffer, p);
+        for (int i = 0; i < V.length; i++, p += 2)
+            V[i] = buffer.getChar(p);
+        I = buffer.getChar(p);
+        pc = buffer.getChar(p + 2);
+        p += 4;
+        for (int i = 0; i < stack.length; i++, p += 2)
+            stack[i] = buffer.getChar(p);
+        stackPointer = buffer.getInt(p);
+        delay_timer = buffer.getInt(p + 4);
+        sound_timer = buffer.getInt(p + 8);
+        frameCount = buffer.getLong(p + 12);
+        random = buffer.getLong(p + 20);
+        p += 28;
+        buffer.get(p, keys, 0, keys.length);
+        p += keys.length;
+        for (int i = 0; i < display.length; i++, p += 8)
+            display[i] = buffer.getLong(p);
+        buffer.position(p);
+
+        clearCaches();
+        needDraw = true;
+        dirtyRows = 0xFFFFFFFF;
+    }
+
+    // Fills a page from the buffer with one bulk copy. A page still shared with the image stays shared if the
+    // contents match it; otherwise the copy becomes the private page, which allocates only the first time.
+    private void loadPage(int page, ByteBuffer buffer, int p) {
+        if ((privatePages & (1 << page)) != 0) {
+            buffer.get(p, memory[page], 0, MemoryImage.PAGE_SIZE);
+            return;
+        }
+        if (loadedPage == null)
+            loadedPage = new byte[MemoryImage.PAGE_SIZE];
+        buffer.get(p, loadedPage, 0, MemoryImage.PAGE_SIZE);
+        if (Arrays.equals(loadedPage, memory[page]))
+            return;
+        memory[page] = loadedPage;
+        privatePages |= 1 << page;
+        loadedPage = null;
+    }
+
+    // Copies the machine state into the snapshot without allocating
+    public void snapshot(ChipSnapshot s) {
+        for (int page = 0; page < MemoryImage.PAGES; page++)
+            System.arraycopy(memory[page], 0, s.memory, page * MemoryImage.PAGE_SIZE, MemoryImage.PAGE_SIZE);
+        System.arraycopy(V, 0, s.V, 0, V.length);
+        System.arraycopy(stack, 0, s.stack, 0, stack.length);
+        System.arraycopy(keys, 0, s.keys, 0, keys.length);
+        System.arraycopy(display, 0, s.display, 0, display.length);
+        s.I = I;
+        s.pc = pc;
+        s.stackPointer = stackPointer;
+        s.delayTimer = delay_timer;
+        s.soundTimer = sound_timer;
+        s.frameCount = frameCount;
+        s.random = random;
+        s.needDraw = needDraw;
+        s.dirtyRows = dirtyRows;
+        s.memoryWrites = memoryWrites;
+        s.owner = this;
+    }
+
+    // Puts the chip back into the snapshot's state. Memory is only compared and written back if something was
+    // written since the snapshot (or it came from another chip), and then only the changed bytes, so the decoded
+    // and compiled code stays cached.
+    public void restore(ChipSnapshot s) {
+        if (s.owner != this || memoryWrites != s.memoryWrites) {
+            for (int i = 0; i < MEMORY_SIZE; i++) {
+                if (memory[i >> 8][i & 0xFF] != s.memory[i])
+                    writeMemory(i, s.memory[i]);
+            }
+        }
+        System.arraycopy(s.V, 0, V, 0, V.length);
+        System.arraycopy(s.stack, 0, stack, 0, stack.length);
+        System.arraycopy(s.keys, 0, keys, 0, keys.length);
+        System.arraycopy(s.display, 0, display, 0, display.length);
+        I = s.I;
+        pc = s.pc;
+        stackPointer = s.stackPointer;
+        delay_timer = s.delayTimer;
+        sound_timer = s.soundTimer;
+        frameCount = s.frameCount;
+        random = s.random;
+        needDraw = s.needDraw;
+        dirtyRows = s.dirtyRows;
+    }
+
+    // While speculative, executed instructions are not traced; used for frames that will be restored away
+    public void setSpeculative(boolean speculative) {
+        this.speculative = speculative;
+    }
+
+    public boolean isSpeculative() {
+        return speculative;
+    }
+
+    // Sets the keypad state, one bit per key 0-F
+    public void setKeyMask(int mask) {
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = (byte) ((mask >> i) & 1);
+    }
+
+    public int getKeyMask() {
+        int mask = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0)
+                mask |= 1 << i;
+        }
+        return mask;
+    }
+
     public boolean needsRedraw() {
         return needDraw;
     }
@@ -563,4 +1186,11 @@ public class Chip {
     public void removeDrawFlag() {
         needDraw = false;
     }
+
+    // Returns the rows changed by DXYN/00E0 since the last call, one bit per row, and clears them
+    public int takeDirtyRows() {
+        int rows = dirtyRows;
+        dirtyRows = 0;
+        return rows;
+    }
 }
@@ -0,0 +1,23 @@
+package chip;
+
+// Thrown by Chip when the program cannot go on, e.g. on an unsupported opcode. The Chip is left as it was
+// when the faulting instruction was fetched, so the caller can inspect, trace-dump or reset just that instance.
+public class ChipFault extends RuntimeException {
+
+    private final int pc;
+    private final int opcode;
+
+    public ChipFault(String message, int pc, int opcode) {
+        super(String.format("%s (opcode %04X at %03X)", message, opcode, pc));
+        this.pc = pc;
+        this.opcode = opcode;
+    }
+
+    public int getPc() {
+        return pc;
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+}
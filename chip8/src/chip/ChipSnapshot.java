@@ -0,0 +1,37 @@
+package chip;
+
+import java.util.Arrays;
+
+/**
+ * In-memory copy of a Chip's machine state for snapshot()/restore(). Taking or restoring one is a handful of
+ * array copies into buffers allocated once here, which is what run-ahead needs every frame.
+ */
+public class ChipSnapshot {
+
+    final byte[] memory = new byte[4096];
+    final char[] V = new char[16];
+    final char[] stack = new char[16];
+    final byte[] keys = new byte[16];
+    final long[] display = new long[32];
+    char I;
+    char pc;
+    int stackPointer;
+    int delayTimer;
+    int soundTimer;
+    long frameCount;
+    long random;
+    boolean needDraw;
+    int dirtyRows;
+
+    // The chip the snapshot was taken from and its memory write counter at that time
+    Chip owner;
+    long memoryWrites;
+
+    // True if both snapshots hold the same machine state; redraw bookkeeping and ownership are not compared
+    public boolean sameState(ChipSnapshot other) {
+        return I == other.I && pc == other.pc && stackPointer == other.stackPointer
+                && delayTimer == other.delayTimer && soundTimer == other.soundTimer && frameCount == other.frameCount && random == other.random
+                && Arrays.equals(memory, other.memory) && Arrays.equals(V, other.V) && Arrays.equals(stack, other.stack)
+                && Arrays.equals(keys, other.keys) && Arrays.equals(display, other.display);
+    }
+}
@@ -0,0 +1,375 @@
+package chip;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PC breakpoints, read/write watchpoints on memory ranges and on V0-VF and I, single-stepping and stepping over
+ * 2NNN, for one Chip (see emu.DebugConsole for a command line around it).
+ *
+ * Nothing is checked per instruction. A breakpoint, or an instruction that may touch something watched, gets a
+ * TRAP entry in the chip's decoded-program cache in place of its decoded form (see Chip.refreshTraps()), and
+ * only those addresses go through the checks here; every other instruction runs the interpreter or compiled
+ * blocks exactly as without a debugger. Watchpoints therefore stop before the instruction that would make the
+ * access, with pc on it, like breakpoints.
+ *
+ * While attached, run the chip through step(), stepOver() and resume() only: they keep track of frames that
+ * were stopped half way, and a stop anywhere else would cut a frame short.
+ */
+public class Debugger {
+
+    // Register number of I for watchRegister(); 0-15 are V0-VF
+    public static final int REGISTER_I = 16;
+
+    private static final int MEMORY_SIZE = MemoryImage.PAGES * MemoryImage.PAGE_SIZE;
+
+    private final Chip chip;
+    private final boolean[] breakpoints = new boolean[MEMORY_SIZE];
+    private final List<Watch> watches = new ArrayList<>();
+
+    // Everything watched, merged, so traps() can tell quickly whether an instruction needs a trap
+    private int readRegisters;
+    private int writtenRegisters;
+    private boolean memoryReads;
+    private boolean memoryWrites;
+
+    // Return address and stack depth that end a step over 2NNN, or -1
+    private int stepOverAddress = -1;
+    private int stepOverDepth;
+
+    private int frameCycles; // instructions run in the frame in progress
+    private boolean stepping; // running the instruction at pc whatever its trap says
+    private String stopReason;
+
+    private final ChipSnapshot view = new ChipSnapshot();
+
+    public Debugger(Chip chip) {
+        this.chip = chip;
+        chip.setDebugger(this);
+    }
+
+    // Takes every trap out of the chip again
+    public void detach() {
+        chip.setDebugger(null);
+    }
+
+    public void addBreakpoint(int address) {
+        breakpoints[checkAddress(address)] = true;
+        chip.refreshTraps();
+    }
+
+    public void removeBreakpoint(int address) {
+        breakpoints[checkAddress(address)] = false;
+        chip.refreshTraps();
+    }
+
+    public List<Integer> getBreakpoints() {
+        List<Integer> addresses = new ArrayList<>();
+        for (int address = 0; address < MEMORY_SIZE; address++) {
+            if (breakpoints[address])
+                addresses.add(address);
+        }
+        return addresses;
+    }
+
+    // Stops before any instruction that reads and/or writes memory in [from, to]: DXYN, FX65, FX33 and FX55
+    public void watchMemory(int from, int to, boolean read, boolean write) {
+        if (checkAddress(to) < checkAddress(from))
+            throw new IllegalArgumentException(String.format("Empty range %03X-%03X", from, to));
+        addWatch(new Watch(from, to, 0, read, write));
+    }
+
+    // Stops before any instruction that reads and/or writes the register, 0-15 for V0-VF or REGISTER_I
+    public void watchRegister(int register, boolean read, boolean write) {
+        if (register < 0 || register > REGISTER_I)
+            throw new IllegalArgumentException("No register " + register);
+        addWatch(new Watch(-1, -1, 1 << register, read, write));
+    }
+
+    public void removeWatch(int index) {
+        watches.remove(index);
+        mergeWatches();
+    }
+
+    public List<String> getWatches() {
+        List<String> descriptions = new ArrayList<>();
+        for (Watch watch : watches)
+            descriptions.add(watch.toString());
+        return descriptions;
+    }
+
+    // Runs the instruction at pc, even if a breakpoint is set on it
+    public void step() {
+        stepping = true;
+        try {
+            frameCycles += chip.execute(1);
+        } finally {
+            stepping = false;
+        }
+        if (frameCycles == chip.getCyclesPerFrame()) {
+            chip.finishFrame();
+            frameCycles = 0;
+        }
+    }
+
+    // Runs a 2NNN at pc until its subroutine has returned, like resume(); any other instruction is just stepped
+    public String stepOver(long maxFrames) {
+        int op = Decoder.decode(getOpcode());
+        if (Decoder.kind(op) != Decoder.CALL) {
+            step();
+            return null;
+        }
+
+        stepOverAddress = view.pc + 2;
+        stepOverDepth = view.stackPointer;
+        chip.refreshTraps();
+        try {
+            return resume(maxFrames);
+        } finally {
+            stepOverAddress = -1;
+            chip.refreshTraps();
+        }
+    }
+
+    // Runs from pc, not stopping at a breakpoint on it, until a breakpoint or watchpoint stops the chip or the
+    // given number of frames has ended. Returns why it stopped, or null if it ran out of frames.
+    public String resume(long maxFrames) {
+        stopReason = null;
+        step();
+        long frames = 0;
+        while (stopReason == null && frames < maxFrames) {
+            frameCycles += chip.execute(chip.getCyclesPerFrame() - frameCycles);
+            if (stopReason == null) {
+                chip.finishFrame();
+                frameCycles = 0;
+                frames++;
+            }
+        }
+        return stopReason;
+    }
+
+    public int getPc() {
+        chip.snapshot(view);
+        return view.pc;
+    }
+
+    // The opcode at pc
+    public int getOpcode() {
+        chip.snapshot(view);
+        return (view.memory[view.pc] & 0xFF) << 8 | view.memory[(view.pc + 1) & (MEMORY_SIZE - 1)] & 0xFF;
+    }
+
+    public int readMemory(int address) {
+        chip.snapshot(view);
+        return view.memory[address & (MEMORY_SIZE - 1)] & 0xFF;
+    }
+
+    // Instructions run so far in the frame in progress
+    public int getFrameCycles() {
+        return frameCycles;
+    }
+
+    // V0-VF, I, the stack and the timers on two lines
+    public String describeRegisters() {
+        chip.snapshot(view);
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < 16; i++)
+            out.append(String.format("V%X=%02X ", i, (int) view.V[i]));
+        out.append(String.format("%nI=%03X SP=%d DT=%02X ST=%02X", (int) view.I, view.stackPointer, view.delayTimer, view.soundTimer));
+        for (int i = 0; i < view.stackPointer; i++)
+            out.append(String.format(i == 0 ? " stack %03X" : " %03X", (int) view.stack[i]));
+        return out.toString();
+    }
+
+    // Whether the instruction at the address needs a TRAP entry: called by the chip when it decodes one
+    boolean traps(int address, int op) {
+        if (breakpoints[address] || address == stepOverAddress)
+            return true;
+        if ((registerReads(op) & readRegisters) != 0 || (registerWrites(op) & writtenRegisters) != 0)
+            return true;
+        int kind = Decoder.kind(op);
+        return memoryReads && (kind == Decoder.DRW || kind == Decoder.LD_V_MEM)
+                || memoryWrites && (kind == Decoder.LD_B || kind == Decoder.LD_MEM_V);
+    }
+
+    // Called by the chip at a TRAP entry with the instruction it stands for; true stops before running it
+    boolean stops(int pc, int op, int I, int stackPointer) {
+        if (stepping)
+            return false;
+        if (breakpoints[pc])
+            stopReason = String.format("breakpoint at %03X", pc);
+        else if (pc == stepOverAddress && stackPointer == stepOverDepth)
+            stopReason = String.format("returned to %03X", pc);
+        else
+            stopReason = watchHit(op, I);
+        return stopReason != null;
+    }
+
+    private String watchHit(int op, int I) {
+        int reads = registerReads(op);
+        int writes = registerWrites(op);
+        if (Decoder.kind(op) == Decoder.LD_K && chip.getKeyMask() == 0)
+            writes = 0; // stays blocked without writing VX
+
+        int kind = Decoder.kind(op);
+        int length;
+        switch (kind) {
+            case Decoder.DRW: length = Decoder.argument(op); break;
+            case Decoder.LD_B: length = 3; break;
+            case Decoder.LD_MEM_V:
+            case Decoder.LD_V_MEM: length = Decoder.x(op) + 1; break;
+            default: length = 0; break;
+        }
+        boolean memoryRead = kind == Decoder.DRW || kind == Decoder.LD_V_MEM;
+
+        for (Watch watch : watches) {
+            if (watch.from < 0) {
+                if (watch.read && (reads & watch.registers) != 0)
+                    return "watchpoint " + watch.describeTarget() + " read";
+                if (watch.write && (writes & watch.registers) != 0)
+                    return "watchpoint " + watch.describeTarget() + " written";
+            } else if (length > 0 && (memoryRead ? watch.read : watch.write)
+                    && I <= watch.to && I + length - 1 >= watch.from) {
+                return String.format("watchpoint %s %s at %03X-%03X", watch.describeTarget(),
+                        memoryRead ? "read" : "written", I, I + length - 1);
+            }
+        }
+        return null;
+    }
+
+    private void addWatch(Watch watch) {
+        if (!watch.read && !watch.write)
+            throw new IllegalArgumentException("A watchpoint needs read, write or both");
+        watches.add(watch);
+        mergeWatches();
+    }
+
+    private void mergeWatches() {
+        readRegisters = 0;
+        writtenRegisters = 0;
+        memoryReads = false;
+        memoryWrites = false;
+        for (Watch watch : watches) {
+            if (watch.read) {
+                readRegisters |= watch.registers;
+                memoryReads |= watch.from >= 0;
+            }
+            if (watch.write) {
+                writtenRegisters |= watch.registers;
+                memoryWrites |= watch.from >= 0;
+            }
+        }
+        chip.refreshTraps();
+    }
+
+    private static int checkAddress(int address) {
+        if (address < 0 || address >= MEMORY_SIZE)
+            throw new IllegalArgumentException(String.format("Address %X is outside memory", address));
+        return address;
+    }
+
+    // Registers the instruction reads, one bit each for V0-VF and bit 16 for I
+    static int registerReads(int op) {
+        int x = 1 << Decoder.x(op);
+        int y = 1 << Decoder.y(op);
+        switch (Decoder.kind(op)) {
+            case Decoder.SE_NN:
+            case Decoder.SNE_NN:
+            case Decoder.ADD_NN:
+            case Decoder.SHR:
+            case Decoder.SHL:
+            case Decoder.SKP:
+            case Decoder.SKNP:
+            case Decoder.LD_DT:
+            case Decoder.LD_ST:
+            case Decoder.LD_F:
+                return x;
+            case Decoder.SE_VY:
+            case Decoder.OR:
+            case Decoder.AND:
+            case Decoder.XOR:
+            case Decoder.ADD_VY:
+            case Decoder.SUB:
+            case Decoder.SUBN:
+                return x | y;
+            case Decoder.LD_VY:
+                return y;
+            case Decoder.JP_V0:
+                return 1;
+            case Decoder.DRW:
+                return x | y | 1 << REGISTER_I;
+            case Decoder.ADD_I:
+            case Decoder.LD_B:
+                return x | 1 << REGISTER_I;
+            case Decoder.LD_MEM_V:
+                return (x << 1) - 1 | 1 << REGISTER_I;
+            case Decoder.LD_V_MEM:
+                return 1 << REGISTER_I;
+            default:
+                return 0;
+        }
+    }
+
+    // Registers the instruction may write, in the same layout
+    static int registerWrites(int op) {
+        int x = 1 << Decoder.x(op);
+        switch (Decoder.kind(op)) {
+            case Decoder.LD_NN:
+            case Decoder.ADD_NN:
+            case Decoder.LD_VY:
+            case Decoder.OR:
+            case Decoder.AND:
+            case Decoder.XOR:
+            case Decoder.RND:
+            case Decoder.LD_K:
+            case Decoder.LD_VX_DT:
+                return x;
+            case Decoder.ADD_VY:
+            case Decoder.SUB:
+            case Decoder.SHR:
+            case Decoder.SUBN:
+            case Decoder.SHL:
+                return x | 1 << 0xF;
+            case Decoder.DRW:
+                return 1 << 0xF;
+            case Decoder.LD_I:
+            case Decoder.ADD_I:
+            case Decoder.LD_F:
+                return 1 << REGISTER_I;
+            case Decoder.LD_V_MEM:
+                return (x << 1) - 1 | 1 << REGISTER_I;
+            default:
+                return 0;
+        }
+    }
+
+    // A memory range [from, to], or registers when from is -1
+    private static final class Watch {
+
+        final int from;
+        final int to;
+        final int registers;
+        final boolean read;
+        final boolean write;
+
+        Watch(int from, int to, int registers, boolean read, boolean write) {
+            this.from = from;
+            this.to = to;
+            this.registers = registers;
+            this.read = read;
+            this.write = write;
+        }
+
+        String describeTarget() {
+            if (from >= 0)
+                return from == to ? String.format("%03X", from) : String.format("%03X-%03X", from, to);
+            int register = Integer.numberOfTrailingZeros(registers);
+            return register == REGISTER_I ? "I" : String.format("V%X", register);
+        }
+
+        @Override
+        public String toString() {
+            return describeTarget() + " " + (read ? "r" : "") + (write ? "w" : "");
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package chip;
+
+/**
+ * Turns raw opcodes into packed instruction entries for the decoded-program cache.
+ *
+ * An entry is laid out as: kind (bits 24-31) | Y (bits 20-23) | X (bits 16-19) | argument (bits 0-11),
+ * where the argument already is NNN, NN or N depending on the kind. An entry of 0 means "not decoded yet".
+ */
+final class Decoder {
+
+    static final int UNDECODED = 0;
+    static final int CLS = 1;        // 00E0
+    static final int RET = 2;        // 00EE
+    static final int JP = 3;         // 1NNN
+    static final int CALL = 4;       // 2NNN
+    static final int SE_NN = 5;      // 3XNN
+    static final int SNE_NN = 6;     // 4XNN
+    static final int SE_VY = 7;      // 5XY0
+    static final int LD_NN = 8;      // 6XNN
+    static final int ADD_NN = 9;     // 7XNN
+    static final int LD_VY = 10;     // 8XY0
+    static final int OR = 11;        // 8XY1
+    static final int AND = 12;       // 8XY2
+    static final int XOR = 13;       // 8XY3
+    static final int ADD_VY = 14;    // 8XY4
+    static final int SUB = 15;       // 8XY5
+    static final int SHR = 16;       // 8XY6
+    static final int SUBN = 17;      // 8XY7
+    static final int SHL = 18;       // 8XYE
+    static final int LD_I = 19;      // ANNN
+    static final int JP_V0 = 20;     // BNNN
+    static final int RND = 21;       // CXNN
+    static final int DRW = 22;       // DXYN
+    static final int SKP = 23;       // EX9E
+    static final int SKNP = 24;      // EXA1
+    static final int E_NOP = 25;     // any other EXNN: does nothing and does not advance pc
+    static final int LD_K = 26;      // FX0A
+    static final int LD_VX_DT = 27;  // FX07
+    static final int LD_DT = 28;     // FX15
+    static final int LD_ST = 29;     // FX18
+    static final int ADD_I = 30;     // FX1E
+    static final int LD_F = 31;      // FX29
+    static final int LD_B = 32;      // FX33
+    static final int LD_MEM_V = 33;  // FX55
+    static final int LD_V_MEM = 34;  // FX65
+    static final int INVALID = 35;
+    static final int TRAP = 36;      // placed by a Debugger instead of the decoded instruction, see Chip.refreshTraps()
+
+    static final int TRAP_ENTRY = TRAP << 24;
+
+    private Decoder() {
+    }
+
+    static int decode(int opcode) {
+        switch (opcode & 0xF000) {
+            case 0x0000:
+                switch (opcode & 0x00FF) {
+                    case 0x00E0: return entry(CLS, opcode, 0);
+                    case 0x00EE: return entry(RET, opcode, 0);
+                    default: return entry(INVALID, opcode, 0);
+                }
+            case 0x1000: return entry(JP, opcode, opcode & 0x0FFF);
+            case 0x2000: return entry(CALL, opcode, opcode & 0x0FFF);
+            case 0x3000: return entry(SE_NN, opcode, opcode & 0x00FF);
+            case 0x4000: return entry(SNE_NN, opcode, opcode & 0x00FF);
+            case 0x5000: return entry(SE_VY, opcode, 0);
+            case 0x6000: return entry(LD_NN, opcode, opcode & 0x00FF);
+            case 0x7000: return entry(ADD_NN, opcode, opcode & 0x00FF);
+            case 0x8000:
+                switch (opcode & 0x000F) {
+                    case 0x0000: return entry(LD_VY, opcode, 0);
+                    case 0x0001: return entry(OR, opcode, 0);
+                    case 0x0002: return entry(AND, opcode, 0);
+                    case 0x0003: return entry(XOR, opcode, 0);
+                    case 0x0004: return entry(ADD_VY, opcode, 0);
+                    case 0x0005: return entry(SUB, opcode, 0);
+                    case 0x0006: return entry(SHR, opcode, 0);
+                    case 0x0007: return entry(SUBN, opcode, 0);
+                    case 0x000E: return entry(SHL, opcode, 0);
+                    default: return entry(INVALID, opcode, 0);
+                }
+            case 0xA000: return entry(LD_I, opcode, opcode & 0x0FFF);
+            case 0xB000: return entry(JP_V0, opcode, opcode & 0x0FFF);
+            case 0xC000: return entry(RND, opcode, opcode & 0x00FF);
+            case 0xD000: return entry(DRW, opcode, opcode & 0x000F);
+            case 0xE000:
+                switch (opcode & 0x00FF) {
+                    case 0x009E: return entry(SKP, opcode, 0);
+                    case 0x00A1: return entry(SKNP, opcode, 0);
+                    default: return entry(E_NOP, opcode, 0);
+                }
+            case 0xF000:
+                switch (opcode & 0x00FF) {
+                    case 0x000A: return entry(LD_K, opcode, 0);
+                    case 0x0007: return entry(LD_VX_DT, opcode, 0);
+                    case 0x0015: return entry(LD_DT, opcode, 0);
+                    case 0x0018: return entry(LD_ST, opcode, 0);
+                    case 0x001E: return entry(ADD_I, opcode, 0);
+                    case 0x0029: return entry(LD_F, opcode, 0);
+                    case 0x0033: return entry(LD_B, opcode, 0);
+                    case 0x0055: return entry(LD_MEM_V, opcode, 0);
+                    case 0x0065: return entry(LD_V_MEM, opcode, 0);
+                    default: return entry(INVALID, opcode, 0);
+                }
+            default:
+                return entry(INVALID, opcode, 0);
+        }
+    }
+
+    private static int entry(int kind, int opcode, int argument) {
+        return kind << 24 | ((opcode & 0x00F0) >> 4) << 20 | ((opcode & 0x0F00) >> 8) << 16 | argument;
+    }
+
+    static int kind(int entry) {
+        return entry >>> 24;
+    }
+
+    static int x(int entry) {
+        return (entry >> 16) & 0xF;
+    }
+
+    static int y(int entry) {
+        return (entry >> 20) & 0xF;
+    }
+
+    static int argument(int entry) {
+        return entry & 0x0FFF;
+    }
+}
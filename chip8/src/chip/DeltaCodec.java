@@ -0,0 +1,77 @@
+package chip;
+
+/**
+ * XOR delta encoding with run-length compression of the unchanged parts.
+ *
+ * A delta between two equally long byte arrays is a sequence of tokens, each made of a varint count of
+ * unchanged bytes, a varint count of changed bytes and then the changed bytes XORed with their old values.
+ * Because the payload is an XOR, applying the same delta twice restores the original, so one delta serves
+ * to step both forwards and backwards. Neither direction allocates.
+ */
+public final class DeltaCodec {
+
+    private DeltaCodec() {
+    }
+
+    // Upper bound of encode() output for inputs of the given length
+    public static int maxEncodedSize(int length) {
+        return length + length / 2 + 16;
+    }
+
+    // Encodes current XOR previous over the first length bytes into out at outPos and returns the position after it
+    public static int encode(byte[] current, byte[] previous, int length, byte[] out, int outPos) {
+        int i = 0;
+        while (i < length) {
+            int start = i;
+            while (i < length && current[i] == previous[i])
+                i++;
+            int unchanged = i - start;
+
+            start = i;
+            while (i < length && current[i] != previous[i])
+                i++;
+            int changed = i - start;
+
+            outPos = writeVarint(out, outPos, unchanged);
+            outPos = writeVarint(out, outPos, changed);
+            for (int k = start; k < i; k++)
+                out[outPos++] = (byte) (current[k] ^ previous[k]);
+        }
+        return outPos;
+    }
+
+    // XORs the delta starting at delta[pos] into the first length bytes of target and returns the position after it
+    public static int apply(byte[] delta, int pos, byte[] target, int length) {
+        int i = 0;
+        while (i < length) {
+            int unchanged = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = delta[pos++];
+                unchanged |= (b & 0x7F) << shift;
+                if (b >= 0)
+                    break;
+            }
+            int changed = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = delta[pos++];
+                changed |= (b & 0x7F) << shift;
+                if (b >= 0)
+                    break;
+            }
+
+            i += unchanged;
+            for (int end = i + changed; i < end; i++)
+                target[i] ^= delta[pos++];
+        }
+        return pos;
+    }
+
+    private static int writeVarint(byte[] out, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+}
@@ -0,0 +1,167 @@
+package chip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Recorded input of one session: the ROM, random seed and cycles per frame it ran with, and the key mask of
+ * every frame where it changed. Replaying it on a chip started the same way (see start()) reproduces the
+ * session exactly, at whatever speed the caller runs the frames.
+ *
+ * File layout (big endian): magic "C8MV", version, the 20 byte SHA-1 of the ROM, seed (long), cycles per frame
+ * (int), length in frames (long), event count (int), then per event the frames since the previous event
+ * (unsigned varint) and the key mask (short).
+ */
+public class InputMovie {
+
+    private static final int MAGIC = 0x43384D56; // "C8MV"
+    private static final int VERSION = 1;
+
+    private final byte[] romHash;
+    private final long seed;
+    private final int cyclesPerFrame;
+
+    // Frame number and key mask of each change, in frame order
+    private long[] frames = new long[64];
+    private int[] masks = new int[64];
+    private int count;
+    private long length;
+
+    // Replay position: next event to apply and the mask currently held
+    private int cursor;
+    private int mask;
+
+    public InputMovie(byte[] romHash, long seed, int cyclesPerFrame) {
+        this.romHash = romHash.clone();
+        this.seed = seed;
+        this.cyclesPerFrame = cyclesPerFrame;
+    }
+
+    // Puts a chip that was just loaded with the movie's ROM into the movie's starting conditions and rewinds
+    // the replay position
+    public void start(Chip chip) {
+        if (!Arrays.equals(chip.getRomHash(), romHash))
+            throw new IllegalArgumentException("The movie was recorded with a different ROM");
+        chip.setSeed(seed);
+        chip.setCyclesPerFrame(cyclesPerFrame);
+        cursor = 0;
+        mask = 0;
+    }
+
+    // Records the key mask the given frame runs with; call once per frame, before running it. Recording an
+    // earlier frame than the last one (after a rewind) drops everything recorded from that frame on.
+    public void record(long frame, int keyMask) {
+        while (count > 0 && frames[count - 1] >= frame)
+            count--;
+        int previous = count > 0 ? masks[count - 1] : 0;
+        if (keyMask != previous) {
+            if (count == frames.length) {
+                frames = Arrays.copyOf(frames, count * 2);
+                masks = Arrays.copyOf(masks, count * 2);
+            }
+            frames[count] = frame;
+            masks[count] = keyMask;
+            count++;
+        }
+        length = frame + 1;
+    }
+
+    // Sets the key mask for the frame the chip runs next. Returns false once the movie has ended.
+    public boolean replay(Chip chip) {
+        long frame = chip.getFrameCount();
+        if (frame >= length)
+            return false;
+        if (cursor > 0 && frames[cursor - 1] > frame) { // the chip was rewound
+            cursor = 0;
+            mask = 0;
+        }
+        while (cursor < count && frames[cursor] <= frame)
+            mask = masks[cursor++];
+        chip.setKeyMask(mask);
+        return true;
+    }
+
+    public byte[] getRomHash() {
+        return romHash.clone();
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getCyclesPerFrame() {
+        return cyclesPerFrame;
+    }
+
+    // Frames covered by the movie
+    public long getLength() {
+        return length;
+    }
+
+    public int getEventCount() {
+        return count;
+    }
+
+    public void write(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(romHash);
+            out.writeLong(seed);
+            out.writeInt(cyclesPerFrame);
+            out.writeLong(length);
+            out.writeInt(count);
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                writeVarLong(out, frames[i] - previous);
+                out.writeShort(masks[i]);
+                previous = frames[i];
+            }
+        }
+    }
+
+    public static InputMovie read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not an input movie");
+            if (in.readInt() != VERSION)
+                throw new IOException(file + " was written by an incompatible version");
+            byte[] romHash = new byte[20];
+            in.readFully(romHash);
+            InputMovie movie = new InputMovie(romHash, in.readLong(), in.readInt());
+            long length = in.readLong();
+            int count = in.readInt();
+            long frame = 0;
+            for (int i = 0; i < count; i++) {
+                frame += readVarLong(in);
+                movie.record(frame, in.readUnsignedShort());
+            }
+            movie.length = length;
+            return movie;
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+}
@@ -0,0 +1,554 @@
+package chip;
+
+import java.util.Arrays;
+
+/**
+ * Runs many instances of one ROM in lockstep, with the machine state of all instances stored
+ * struct-of-arrays style: one primitive array per register file, indexed by instance.
+ *
+ * Every cycle the running instances are grouped by pc. Instances that have not written into the code
+ * page at their pc share the ROM's decoded instruction, so each group is decoded once and executed
+ * by one switch over a tight loop across its members. Instances whose code page was written decode
+ * from their own memory and run as groups of one. The results match chip.Chip bit for bit, faults
+ * included (see snapshot() and getFault()).
+ */
+public class LockstepEngine {
+
+    private static final int MEMORY = 4096;
+
+    private final int count;
+    private int cyclesPerFrame = 10;
+
+    // Per-instance state; instance i owns memory[i * 4096 ...], V/stack[i * 16 ...], display[i * 32 ...]
+    private final byte[] memory;
+    private final char[] V;
+    private final char[] I;
+    private final char[] pc;
+    private final char[] stack;
+    private final int[] stackPointer;
+    private final int[] delayTimer;
+    private final int[] soundTimer;
+    private final int[] keyMask;
+    private final long[] display;
+    private final long[] frameCount;
+    private final long[] random;
+
+    // Bit per 256-byte page an instance has written to, so the shared decoded program no longer applies there
+    private final int[] writtenPages;
+    private final ChipFault[] faults;
+
+    // Memory image every instance starts from, and the instructions decoded from it
+    private final byte[] image = new byte[MEMORY];
+    private final int[] sharedDecoded = new int[MEMORY];
+
+    // Grouping scratch: per pc the first member, per instance the next member of its group
+    private final int[] groupHead = new int[MEMORY];
+    private final int[] groupNext;
+    private final int[] touchedPcs;
+    private final int[] members;
+
+    public LockstepEngine(byte[] rom, int instances) {
+        count = instances;
+        memory = new byte[instances * MEMORY];
+        V = new char[instances * 16];
+        I = new char[instances];
+        pc = new char[instances];
+        stack = new char[instances * 16];
+        stackPointer = new int[instances];
+        delayTimer = new int[instances];
+        soundTimer = new int[instances];
+        keyMask = new int[instances];
+        display = new long[instances * 32];
+        frameCount = new long[instances];
+        random = new long[instances];
+        writtenPages = new int[instances];
+        faults = new ChipFault[instances];
+
+        groupNext = new int[instances];
+        touchedPcs = new int[Math.min(instances, MEMORY)];
+        members = new int[instances];
+        Arrays.fill(groupHead, -1);
+
+        for (int i = 0; i < ChipData.fontset.length; i++)
+            image[0x50 + i] = (byte) ChipData.fontset[i];
+        System.arraycopy(rom, 0, image, 0x200, rom.length);
+
+        for (int n = 0; n < instances; n++) {
+            System.arraycopy(image, 0, memory, n * MEMORY, MEMORY);
+            pc[n] = 0x200;
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public void setCyclesPerFrame(int cycles) {
+        cyclesPerFrame = cycles;
+    }
+
+    // Seeds the instance's CXNN generator, the same way Chip.setSeed() does; instances start seeded with 0
+    public void setSeed(int instance, long seed) {
+        random[instance] = seed;
+    }
+
+    public void setKeyMask(int instance, int mask) {
+        keyMask[instance] = mask;
+    }
+
+    public boolean isFaulted(int instance) {
+        return faults[instance] != null;
+    }
+
+    public ChipFault getFault(int instance) {
+        return faults[instance];
+    }
+
+    public long getFrameCount(int instance) {
+        return frameCount[instance];
+    }
+
+    // Copies the instance's 32 packed display rows into out at offset
+    public void getDisplayRows(int instance, long[] out, int offset) {
+        System.arraycopy(display, instance * 32, out, offset, 32);
+    }
+
+    // Copies the instance's machine state into a snapshot, e.g. to compare it with a Chip (see ChipSnapshot.sameState())
+    public void snapshot(int instance, ChipSnapshot s) {
+        System.arraycopy(memory, instance * MEMORY, s.memory, 0, MEMORY);
+        System.arraycopy(V, instance * 16, s.V, 0, 16);
+        System.arraycopy(stack, instance * 16, s.stack, 0, 16);
+        System.arraycopy(display, instance * 32, s.display, 0, 32);
+        for (int k = 0; k < 16; k++)
+            s.keys[k] = (byte) ((keyMask[instance] >> k) & 1);
+        s.I = I[instance];
+        s.pc = pc[instance];
+        s.stackPointer = stackPointer[instance];
+        s.delayTimer = delayTimer[instance];
+        s.soundTimer = soundTimer[instance];
+        s.frameCount = frameCount[instance];
+        s.random = random[instance];
+        s.owner = null;
+    }
+
+    // Runs one frame on every instance that has not faulted: cyclesPerFrame instructions, then one timer tick
+    public void runFrame() {
+        for (int c = 0; c < cyclesPerFrame; c++)
+            cycle();
+
+        for (int n = 0; n < count; n++) {
+            if (faults[n] != null)
+                continue;
+            if (soundTimer[n] > 0)
+                soundTimer[n]--;
+            if (delayTimer[n] > 0)
+                delayTimer[n]--;
+            frameCount[n]++;
+        }
+    }
+
+    // Executes one instruction on every running instance
+    private void cycle() {
+        int groups = 0;
+        for (int n = 0; n < count; n++) {
+            if (faults[n] != null)
+                continue;
+            int p = pc[n];
+            if (p + 1 >= MEMORY) {
+                fault(n, "Program counter out of memory");
+                continue;
+            }
+            if ((writtenPages[n] & (1 << (p >> 8))) != 0) {
+                // this instance changed its own code here, so it cannot share the ROM's decoding
+                int base = n * MEMORY;
+                members[0] = n;
+                execute(Decoder.decode((memory[base + p] & 0xFF) << 8 | memory[base + p + 1] & 0xFF), members, 0, 1);
+                continue;
+            }
+            if (groupHead[p] < 0)
+                touchedPcs[groups++] = p;
+            groupNext[n] = groupHead[p];
+            groupHead[p] = n;
+        }
+
+        for (int g = 0; g < groups; g++) {
+            int p = touchedPcs[g];
+            int size = 0;
+            for (int n = groupHead[p]; n >= 0; n = groupNext[n])
+                members[size++] = n;
+            groupHead[p] = -1;
+
+            int op = sharedDecoded[p];
+            if (op == Decoder.UNDECODED) {
+                op = Decoder.decode((image[p] & 0xFF) << 8 | image[p + 1] & 0xFF);
+                sharedDecoded[p] = op;
+            }
+            execute(op, members, 0, size);
+        }
+    }
+
+    // Executes one decoded instruction for members[from..to); mirrors Chip.interpret()
+    private void execute(int op, int[] members, int from, int to) {
+        int X = Decoder.x(op);
+        int Y = Decoder.y(op);
+        int arg = Decoder.argument(op);
+
+        switch (Decoder.kind(op)) {
+            case Decoder.CLS:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    Arrays.fill(display, n * 32, n * 32 + 32, 0L);
+                    pc[n] += 2;
+                }
+                break;
+
+            case Decoder.RET:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    if (stackPointer[n] == 0) {
+                        fault(n, "Stack underflow");
+                        continue;
+                    }
+                    stackPointer[n]--;
+                    pc[n] = (char) (stack[n * 16 + stackPointer[n]] + 2);
+                }
+                break;
+
+            case Decoder.JP:
+                for (int m = from; m < to; m++)
+                    pc[members[m]] = (char) arg;
+                break;
+
+            case Decoder.CALL:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    if (stackPointer[n] == 16) {
+                        fault(n, "Stack overflow");
+                        continue;
+                    }
+                    stack[n * 16 + stackPointer[n]] = pc[n];
+                    stackPointer[n]++;
+                    pc[n] = (char) arg;
+                }
+                break;
+
+            case Decoder.SE_NN:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    pc[n] += V[n * 16 + X] == arg ? 4 : 2;
+                }
+                break;
+
+            case Decoder.SNE_NN:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    pc[n] += V[n * 16 + X] != arg ? 4 : 2;
+                }
+                break;
+
+            case Decoder.SE_VY:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    pc[n] += V[n * 16 + X] == V[n * 16 + Y] ? 4 : 2;
+                }
+                break;
+
+            case Decoder.LD_NN:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    V[n * 16 + X] = (char) arg;
+                    pc[n] += 2;
+                }
+                break;
+
+            case Decoder.ADD_NN:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    V[n * 16 + X] = (char) ((V[n * 16 + X] + arg) & 0xFF);
+                    pc[n] += 2;
+                }
+                break;
+
+            case Decoder.LD_VY:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    V[n * 16 + X] = V[n * 16 + Y];
+                    pc[n] += 2;
+                }
+                break;
+
+            case Decoder.OR:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    V[n * 16 + X] = (char) ((V[n * 16 + X] | V[n * 16 + Y]) & 0xFF);
+                    pc[n] += 2;
+                }
+                break;
+
+            case Decoder.AND:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    V[n * 16 + X] = (char) (V[n * 16 + X] & V[n * 16 + Y]);
+                    pc[n] += 2;
+                }
+                break;
+
+            case Decoder.XOR:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    V[n * 16 + X] = (char) ((V[n * 16 + X] ^ V[n * 16 + Y]) & 0xFF);
+                    pc[n] += 2;
+                }
+                break;
+
+            case Decoder.ADD_VY:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    int v = n * 16;
+                    V[v + 0xF] = V[v + Y] > (0xFF - V[v + X]) ? (char) 1 : (char) 0; // carry
+                    V[v + X] = (char) ((V[v + X] + V[v + Y]) & 0xFF);
+                    pc[n] += 2;
+                }
+                break;
+
+            case Decoder.SUB:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    int v = n * 16;
+                    V[v + 0xF] = V[v + X] > V[v + Y] ? (char) 1 : (char) 0;
+                    V[v + X] = (char) ((V[v + X] - V[v + Y]) & 0xFF);
+                    pc[n] += 2;
+                }
+                break;
+
+            case Decoder.SHR:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    int v = n * 16;
+                    V[v + 0xF] = (char) (V[v + X] & 0x1);
+                    V[v + X] >>= 1;
+                    pc[n] += 2;
+                }
+                break;
+
+            case Decoder.SUBN:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    int v = n * 16;
+                    V[v + 0xF] = V[v + X] > V[v + Y] ? (char) 0 : (char) 1;
+                    V[v + X] = (char) ((V[v + Y] - V[v + X]) & 0xFF);
+                    pc[n] += 2;
+                }
+                break;
+
+            case Decoder.SHL:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    int v = n * 16;
+                    V[v + 0xF] = (char) (V[v + X] & 0x80);
+                    V[v + X] = (char) (V[v + X] << 1);
+                    pc[n] += 2;
+                }
+                break;
+
+            case Decoder.LD_I:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    I[n] = (char) arg;
+                    pc[n] += 2;
+                }
+                break;
+
+            case Decoder.JP_V0:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    pc[n] = (char) (arg + (V[n * 16] & 0xFF));
+                }
+                break;
+
+            case Decoder.RND:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    random[n] += Chip.RANDOM_GAMMA;
+                    V[n * 16 + X] = (char) (Chip.randomByte(random[n]) & arg);
+                    pc[n] += 2;
+                }
+                break;
+
+            case Decoder.DRW:
+                for (int m = from; m < to; m++)
+                    drawSprite(members[m], X, Y, arg);
+                break;
+
+            case Decoder.SKP:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    int key = V[n * 16 + X];
+                    if (key >= 16) {
+                        fault(n, "Key out of range");
+                        continue;
+                    }
+                    pc[n] += ((keyMask[n] >> key) & 1) != 0 ? 4 : 2;
+                }
+                break;
+
+            case Decoder.SKNP:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    int key = V[n * 16 + X];
+                    if (key >= 16) {
+                        fault(n, "Key out of range");
+                        continue;
+                    }
+                    pc[n] += ((keyMask[n] >> key) & 1) != 0 ? 2 : 4;
+                }
+                break;
+
+            case Decoder.E_NOP:
+                break;
+
+            case Decoder.LD_K:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    if (keyMask[n] != 0) {
+                        V[n * 16 + X] = (char) Integer.numberOfTrailingZeros(keyMask[n]);
+                        pc[n] += 2;
+                    }
+                }
+                break;
+
+            case Decoder.LD_VX_DT:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    V[n * 16 + X] = (char) delayTimer[n];
+                    pc[n] += 2;
+                }
+                break;
+
+            case Decoder.LD_DT:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    delayTimer[n] = V[n * 16 + X];
+                    pc[n] += 2;
+                }
+                break;
+
+            case Decoder.LD_ST:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    soundTimer[n] = V[n * 16 + X];
+                    pc[n] += 2;
+                }
+                break;
+
+            case Decoder.ADD_I:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    I[n] = (char) (I[n] + V[n * 16 + X]);
+                    pc[n] += 2;
+                }
+                break;
+
+            case Decoder.LD_F:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    I[n] = (char) (0x050 + (V[n * 16 + X] * 5));
+                    pc[n] += 2;
+                }
+                break;
+
+            case Decoder.LD_B:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    int value = V[n * 16 + X];
+                    int hundreds = (value - (value % 100)) / 100;
+                    value -= hundreds * 100;
+                    int tens = (value - (value % 10)) / 10;
+                    value -= tens * 10;
+                    if (writeMemory(n, I[n], hundreds) && writeMemory(n, I[n] + 1, tens)
+                            && writeMemory(n, I[n] + 2, value))
+                        pc[n] += 2;
+                }
+                break;
+
+            case Decoder.LD_MEM_V:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    boolean ok = true;
+                    for (int r = 0; r <= X && ok; r++)
+                        ok = writeMemory(n, I[n] + r, V[n * 16 + r]);
+                    if (ok)
+                        pc[n] += 2;
+                }
+                break;
+
+            case Decoder.LD_V_MEM:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    if (I[n] + X >= MEMORY) {
+                        fault(n, "Memory read out of range");
+                        continue;
+                    }
+                    for (int r = 0; r <= X; r++)
+                        V[n * 16 + r] = (char) (memory[n * MEMORY + I[n] + r] & 0xFF);
+                    I[n] = (char) (I[n] + X + 1);
+                    pc[n] += 2;
+                }
+                break;
+
+            default:
+                for (int m = from; m < to; m++) {
+                    int n = members[m];
+                    faults[n] = new ChipFault("Unsupported opcode", pc[n], opcodeAt(n, pc[n]));
+                }
+                break;
+        }
+    }
+
+    // Same packed-row blit as Chip.drawSprite()
+    private void drawSprite(int n, int X, int Y, int height) {
+        int v = n * 16;
+        int vx = V[v + X];
+        int vy = V[v + Y];
+        V[v + 0xF] = 0;
+
+        int shift = vx % 64;
+        int base = n * 32;
+        for (int yline = 0; yline < height; yline++) {
+            int address = I[n] + yline;
+            if (address >= MEMORY) {
+                fault(n, "Sprite read out of range");
+                return;
+            }
+            long row = Long.rotateRight((long) (memory[n * MEMORY + address] & 0xFF) << 56, shift);
+            int y = base + (vy + yline) % 32;
+            if ((display[y] & row) != 0)
+                V[v + 0xF] = 1;
+            display[y] ^= row;
+        }
+        pc[n] += 2;
+    }
+
+    // Returns false, after faulting the instance, if the address is outside its memory
+    private boolean writeMemory(int n, int address, int value) {
+        if (address >= MEMORY) {
+            fault(n, "Memory write out of range");
+            return false;
+        }
+        memory[n * MEMORY + address] = (byte) value;
+        writtenPages[n] |= 1 << (address >> 8);
+        if (address > 0)
+            writtenPages[n] |= 1 << ((address - 1) >> 8);
+        return true;
+    }
+
+    private void fault(int n, String message) {
+        int p = pc[n];
+        faults[n] = new ChipFault(message, p, p + 1 < MEMORY ? opcodeAt(n, p) : 0);
+    }
+
+    private int opcodeAt(int n, int address) {
+        int base = n * MEMORY;
+        return (memory[base + address] & 0xFF) << 8 | memory[base + address + 1] & 0xFF;
+    }
+}
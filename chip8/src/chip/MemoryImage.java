@@ -0,0 +1,73 @@
+package chip;
+
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Memory as it is right after a ROM is loaded: the font at 0x50 and the ROM at 0x200, split into 16 pages of
+ * 256 bytes. Every chip running the same ROM maps the same image pages read-only and copies a page only when
+ * it writes to it (see Chip.writeMemory()). Images are interned by the ROM's SHA-1, and pages without font or
+ * ROM bytes are a single zero page shared by all images.
+ */
+final class MemoryImage {
+
+    static final int PAGE_SIZE = 256;
+    static final int PAGES = 16;
+
+    private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+    private static final Map<String, WeakReference<MemoryImage>> images = new ConcurrentHashMap<>();
+    private static final MemoryImage BLANK = new MemoryImage(new byte[0], new byte[20]);
+
+    final byte[][] pages = new byte[PAGES][];
+
+    // Decoded instructions of the unmodified image, shared like the pages. Chips fill entries in as they first
+    // execute them; concurrent chips may race on an entry, but always store the same value.
+    final int[][] decoded = new int[PAGES][PAGE_SIZE];
+
+    final byte[] romHash;
+
+    private MemoryImage(byte[] rom, byte[] romHash) {
+        if (rom.length > PAGES * PAGE_SIZE - 0x200)
+            throw new IllegalArgumentException("ROM of " + rom.length + " bytes does not fit into memory");
+        this.romHash = romHash;
+
+        byte[] memory = new byte[PAGES * PAGE_SIZE];
+        for (int i = 0; i < ChipData.fontset.length; i++)
+            memory[0x50 + i] = (byte) ChipData.fontset[i];
+        System.arraycopy(rom, 0, memory, 0x200, rom.length);
+
+        for (int page = 0; page < PAGES; page++) {
+            byte[] contents = Arrays.copyOfRange(memory, page * PAGE_SIZE, (page + 1) * PAGE_SIZE);
+            pages[page] = Arrays.equals(contents, ZERO_PAGE) ? ZERO_PAGE : contents;
+        }
+    }
+
+    // Font only, what init() starts from before a ROM is loaded
+    static MemoryImage blank() {
+        return BLANK;
+    }
+
+    // The image of the given ROM, shared with every other chip that loaded the same bytes
+    static MemoryImage forRom(byte[] rom) {
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-1").digest(rom);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        String key = new BigInteger(1, hash).toString(16);
+
+        WeakReference<MemoryImage> ref = images.get(key);
+        MemoryImage image = ref != null ? ref.get() : null;
+        if (image == null) {
+            image = new MemoryImage(rom, hash);
+            images.put(key, new WeakReference<>(image));
+        }
+        return image;
+    }
+}
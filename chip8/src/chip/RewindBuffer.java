@@ -0,0 +1,158 @@
+package chip;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the last few seconds of frames so a session can be stepped back in time.
+ *
+ * Only the newest state is stored in full. Every older frame is kept as the XOR delta (see DeltaCodec) between
+ * it and the frame after it, in a fixed-size byte ring; when the ring or the frame limit is full the oldest
+ * deltas are dropped. All buffers are allocated up front, so capture() does not allocate.
+ */
+public class RewindBuffer {
+
+    private final int maxFrames;
+
+    // Newest captured state, and the scratch the next state is serialised into
+    private byte[] current = new byte[Chip.STATE_SIZE];
+    private byte[] next = new byte[Chip.STATE_SIZE];
+    private ByteBuffer currentView = ByteBuffer.wrap(current);
+    private ByteBuffer nextView = ByteBuffer.wrap(next);
+    private boolean hasCurrent;
+
+    // Encoded deltas, plus their start offsets and lengths from oldest (tail) to newest (head - 1)
+    private final byte[] data;
+    private final byte[] encodeScratch = new byte[DeltaCodec.maxEncodedSize(Chip.STATE_SIZE)];
+    private final int[] starts;
+    private final int[] lengths;
+    private int head;
+    private int count;
+    private int writePos;
+
+    private long captures;
+    private long captureNanos;
+
+    private volatile int rewindRequest;
+
+    // capacityBytes is the size of the delta ring; maxFrames caps how far back it reaches
+    public RewindBuffer(int maxFrames, int capacityBytes) {
+        this.maxFrames = maxFrames;
+        this.data = new byte[Math.max(capacityBytes, encodeScratch.length)];
+        this.starts = new int[maxFrames];
+        this.lengths = new int[maxFrames];
+    }
+
+    // Records the chip's state; call once per frame boundary
+    public void capture(Chip chip) {
+        long started = System.nanoTime();
+
+        nextView.clear();
+        chip.saveState(nextView);
+        if (hasCurrent) {
+            // the delta turns the new state back into the previous one
+            int length = DeltaCodec.encode(next, current, Chip.STATE_SIZE, encodeScratch, 0);
+            store(length);
+        }
+
+        byte[] swap = current;
+        current = next;
+        next = swap;
+        ByteBuffer swapView = currentView;
+        currentView = nextView;
+        nextView = swapView;
+        hasCurrent = true;
+
+        captures++;
+        captureNanos += System.nanoTime() - started;
+    }
+
+    // Steps the chip back by up to the given number of frames and returns how many it actually went back.
+    // The frames stepped over are discarded.
+    public int rewind(Chip chip, int frames) {
+        if (!hasCurrent)
+            return 0;
+
+        int done = 0;
+        while (done < frames && count > 0) {
+            int newest = (head - 1 + maxFrames) % maxFrames;
+            DeltaCodec.apply(data, starts[newest], current, Chip.STATE_SIZE);
+            head = newest;
+            count--;
+            writePos = starts[newest];
+            done++;
+        }
+
+        currentView.clear();
+        chip.loadState(currentView);
+        return done;
+    }
+
+    // Rebuilds the state from the given number of frames ago into out (Chip.STATE_SIZE bytes) without
+    // changing the buffer; returns false if that frame is no longer held
+    public boolean peek(int framesBack, byte[] out) {
+        if (!hasCurrent || framesBack > count)
+            return false;
+        System.arraycopy(current, 0, out, 0, Chip.STATE_SIZE);
+        for (int k = 1; k <= framesBack; k++) {
+            int entry = (head - k + maxFrames) % maxFrames;
+            DeltaCodec.apply(data, starts[entry], out, Chip.STATE_SIZE);
+        }
+        return true;
+    }
+
+    // Lets another thread (e.g. the Swing EDT) ask for a rewind that the CPU thread applies at its next frame boundary
+    public void requestRewind(int frames) {
+        rewindRequest = frames;
+    }
+
+    public int rewindIfRequested(Chip chip) {
+        int frames = rewindRequest;
+        if (frames == 0)
+            return 0;
+        rewindRequest = 0;
+        return rewind(chip, frames);
+    }
+
+    // Number of frames that can currently be stepped back
+    public int getFrames() {
+        return count;
+    }
+
+    // Bytes held by encoded deltas
+    public long getDeltaBytes() {
+        long total = 0;
+        for (int k = 1; k <= count; k++)
+            total += lengths[(head - k + maxFrames) % maxFrames];
+        return total;
+    }
+
+    // Bytes allocated by this buffer in total
+    public long getFootprintBytes() {
+        return data.length + encodeScratch.length + 2L * Chip.STATE_SIZE + 8L * maxFrames;
+    }
+
+    public double getAverageCaptureNanos() {
+        return captures == 0 ? 0 : (double) captureNanos / captures;
+    }
+
+    private void store(int length) {
+        if (writePos + length > data.length)
+            writePos = 0;
+
+        // drop the oldest deltas while they overlap the space we are about to use, or the frame limit is hit
+        while (count > 0) {
+            int oldest = (head - count + maxFrames) % maxFrames;
+            boolean overlaps = starts[oldest] < writePos + length && starts[oldest] + lengths[oldest] > writePos;
+            if (!overlaps && count < maxFrames)
+                break;
+            count--;
+        }
+
+        System.arraycopy(encodeScratch, 0, data, writePos, length);
+        starts[head] = writePos;
+        lengths[head] = length;
+        head = (head + 1) % maxFrames;
+        count++;
+        writePos += length;
+    }
+}
@@ -0,0 +1,256 @@
+package chip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Catalog of the ROMs in a set of directories, keyed by the SHA-1 of their contents.
+ *
+ * scan() lists the directories and reads only files that are new or whose size or modification time changed
+ * since the index file was written; everything else comes from the index. Files that are not ROMs (text such
+ * as README or LICENSE, or anything larger than the program area) are remembered too, so they are not read
+ * again either.
+ *
+ * Index layout (big endian): magic "C8RL", version, entry count, then per entry the path (modified UTF-8),
+ * size, modification time (epoch millis), a flag telling whether it is a ROM and, if so, its 20 byte SHA-1.
+ */
+public class RomLibrary {
+
+    public static final int MAX_ROM_SIZE = 4096 - 0x200;
+
+    private static final int MAGIC = 0x4338524C; // "C8RL"
+    private static final int INDEX_VERSION = 1;
+
+    private final Path indexFile;
+    private final List<Path> directories = new ArrayList<>();
+
+    // By absolute path; entries without a hash are files that are not ROMs
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private boolean indexLoaded;
+    private int filesRead;
+
+    public RomLibrary(Path indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    public void addDirectory(Path directory) {
+        directories.add(directory);
+    }
+
+    // Brings the catalog up to date with the directories and rewrites the index if anything changed
+    public void scan() throws IOException {
+        if (!indexLoaded) {
+            loadIndex();
+            indexLoaded = true;
+        }
+
+        filesRead = 0;
+        boolean changed = false;
+        Map<String, Entry> seen = new LinkedHashMap<>();
+        for (Path directory : directories) {
+            if (!Files.isDirectory(directory))
+                continue;
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Path path = file.toAbsolutePath().normalize();
+                    if (path.getFileName().toString().startsWith(".") || path.equals(indexFile.toAbsolutePath().normalize()))
+                        continue;
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    if (!attributes.isRegularFile())
+                        continue;
+
+                    String key = path.toString();
+                    long size = attributes.size();
+                    long lastModified = attributes.lastModifiedTime().toMillis();
+                    Entry entry = entries.get(key);
+                    if (entry == null || entry.size != size || entry.lastModified != lastModified) {
+                        entry = new Entry(path, size, lastModified, identify(path, size));
+                        changed = true;
+                    }
+                    seen.put(key, entry);
+                }
+            }
+        }
+
+        if (!seen.keySet().equals(entries.keySet()))
+            changed = true;
+        entries.clear();
+        entries.putAll(seen);
+        if (changed)
+            saveIndex();
+    }
+
+    // The ROMs found by the last scan(), in directory order
+    public List<Entry> getRoms() {
+        List<Entry> roms = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.hash != null)
+                roms.add(entry);
+        }
+        return Collections.unmodifiableList(roms);
+    }
+
+    // Files the last scan() had to read because they were new or changed
+    public int getFilesRead() {
+        return filesRead;
+    }
+
+    // Finds a ROM by file name (ignoring case) or by its SHA-1 in hex, or a unique prefix of at least 6 digits of it.
+    // Returns null if nothing matches; fails if a hash prefix matches more than one ROM.
+    public Entry find(String nameOrHash) {
+        for (Entry entry : getRoms()) {
+            if (entry.getName().equalsIgnoreCase(nameOrHash))
+                return entry;
+        }
+
+        String prefix = nameOrHash.toLowerCase();
+        if (prefix.length() < 6 || !prefix.matches("[0-9a-f]+"))
+            return null;
+        Entry found = null;
+        for (Entry entry : getRoms()) {
+            if (!entry.getHashHex().startsWith(prefix) || (found != null && found.getHashHex().equals(entry.getHashHex())))
+                continue;
+            if (found != null)
+                throw new IllegalArgumentException("Hash prefix " + nameOrHash + " matches more than one ROM");
+            found = entry;
+        }
+        return found;
+    }
+
+    public byte[] read(Entry entry) throws IOException {
+        return readRom(entry.path);
+    }
+
+    // Reads a whole ROM with one bulk channel read into an array of its exact size
+    public static byte[] readRom(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file)) {
+            long size = channel.size();
+            if (size > MAX_ROM_SIZE)
+                throw new IOException(file + " is " + size + " bytes, larger than the " + MAX_ROM_SIZE + " bytes a ROM can have");
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0)
+                    break;
+            }
+            return buffer.position() == size ? buffer.array() : Arrays.copyOf(buffer.array(), buffer.position());
+        }
+    }
+
+    // The SHA-1 of the file if it is a ROM, null otherwise
+    private byte[] identify(Path path, long size) throws IOException {
+        if (size == 0 || size > MAX_ROM_SIZE)
+            return null;
+        byte[] rom = readRom(path);
+        filesRead++;
+        if (isText(rom))
+            return null;
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(rom);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ROMs start with machine code, which always has bytes outside printable ASCII
+    private static boolean isText(byte[] data) {
+        for (byte b : data) {
+            if ((b < 0x20 || b > 0x7E) && b != '\t' && b != '\n' && b != '\r')
+                return false;
+        }
+        return true;
+    }
+
+    private void loadIndex() throws IOException {
+        if (!Files.exists(indexFile))
+            return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != INDEX_VERSION)
+                return; // unknown index, rebuilt by the scan
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Path path = Path.of(in.readUTF());
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                byte[] hash = null;
+                if (in.readBoolean()) {
+                    hash = new byte[20];
+                    in.readFully(hash);
+                }
+                entries.put(path.toString(), new Entry(path, size, lastModified, hash));
+            }
+        }
+    }
+
+    // Written to a temporary file first so an interrupted write never leaves a broken index behind
+    private void saveIndex() throws IOException {
+        Path temporary = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                out.writeUTF(entry.path.toString());
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                out.writeBoolean(entry.hash != null);
+                if (entry.hash != null)
+                    out.write(entry.hash);
+            }
+        }
+        Files.move(temporary, indexFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public static final class Entry {
+
+        private final Path path;
+        private final long size;
+        private final long lastModified;
+        private final byte[] hash;
+
+        private Entry(Path path, long size, long lastModified, byte[] hash) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        public String getName() {
+            return path.getFileName().toString();
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public byte[] getHash() {
+            return hash.clone();
+        }
+
+        public String getHashHex() {
+            return String.format("%040x", new BigInteger(1, hash));
+        }
+    }
+}
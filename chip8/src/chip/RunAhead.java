@@ -0,0 +1,42 @@
+package chip;
+
+/**
+ * Run-ahead input latency reduction. After each real frame the chip is snapshotted, run a few frames further
+ * with the current input, and the display it reaches is what gets shown; then the snapshot is restored.
+ * A game that reacts to a key N frames late thus shows the reaction up to N frames earlier.
+ */
+public class RunAhead {
+
+    private final int frames;
+    private final ChipSnapshot snapshot = new ChipSnapshot();
+    private final long[] presented = new long[32];
+
+    public RunAhead(int frames) {
+        this.frames = frames;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    // Runs one real frame and returns the display rows to show for it. The array is reused between calls.
+    public long[] runFrame(Chip chip) {
+        chip.runFrame();
+        if (frames == 0) {
+            System.arraycopy(chip.getDisplayRows(), 0, presented, 0, presented.length);
+            return presented;
+        }
+
+        chip.snapshot(snapshot);
+        chip.setSpeculative(true);
+        try {
+            for (int i = 0; i < frames; i++)
+                chip.runFrame();
+            System.arraycopy(chip.getDisplayRows(), 0, presented, 0, presented.length);
+        } finally {
+            chip.setSpeculative(false);
+            chip.restore(snapshot);
+        }
+        return presented;
+    }
+}
@@ -0,0 +1,135 @@
+package chip;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Numbered save-state slots for one ROM, kept in a single memory-mapped file so that saving or loading
+ * a slot is a bulk copy between the Chip arrays and the mapping.
+ *
+ * Layout (big endian): a 64 byte header with magic "C8SS", file version, state version, slot count,
+ * slot size and the 20 byte SHA-1 of the ROM, followed by the slots. Each slot starts with a used flag
+ * and the time it was written (epoch millis), followed by Chip.STATE_SIZE bytes of state.
+ */
+public class SaveStateFile implements Closeable {
+
+    private static final int MAGIC = 0x43385353; // "C8SS"
+    private static final int FILE_VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = SLOT_HEADER_SIZE + Chip.STATE_SIZE;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer mapping;
+    private final byte[] romHash;
+    private final int slots;
+
+    private SaveStateFile(FileChannel channel, MappedByteBuffer mapping, byte[] romHash, int slots) {
+        this.channel = channel;
+        this.mapping = mapping;
+        this.romHash = romHash;
+        this.slots = slots;
+    }
+
+    // Opens the file, creating it with the given number of empty slots if it does not exist yet, or growing it
+    // with empty slots if it has fewer. Fails if the file was written for a different ROM or by an incompatible version.
+    public static SaveStateFile open(Path file, byte[] romHash, int slots) throws IOException {
+        boolean exists = Files.exists(file) && Files.size(file) >= HEADER_SIZE;
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (exists) {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                if (header.getInt(0) != MAGIC)
+                    throw new IOException(file + " is not a save state file");
+                if (header.getInt(4) != FILE_VERSION || header.getInt(8) != Chip.STATE_VERSION || header.getInt(16) != SLOT_SIZE)
+                    throw new IOException(file + " was written by an incompatible version");
+
+                byte[] savedHash = new byte[20];
+                header.position(20);
+                header.get(savedHash);
+                if (!Arrays.equals(savedHash, romHash))
+                    throw new IOException(file + " holds states for a different ROM");
+                slots = Math.max(slots, header.getInt(12));
+            }
+
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+            if (!exists) {
+                mapping.putInt(0, MAGIC);
+                mapping.putInt(4, FILE_VERSION);
+                mapping.putInt(8, Chip.STATE_VERSION);
+                mapping.putInt(12, slots);
+                mapping.putInt(16, SLOT_SIZE);
+                mapping.position(20);
+                mapping.put(romHash);
+            }
+            mapping.putInt(12, slots); // mapping past the end of the file zero-fills it, so new slots are empty
+            return new SaveStateFile(channel, mapping, romHash.clone(), slots);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int getSlotCount() {
+        return slots;
+    }
+
+    public boolean isUsed(int slot) {
+        return mapping.getInt(slotOffset(slot)) != 0;
+    }
+
+    // Epoch millis at which the slot was written, or 0 for an empty slot
+    public long getSavedAt(int slot) {
+        return mapping.getLong(slotOffset(slot) + 4);
+    }
+
+    public void save(int slot, Chip chip) {
+        checkRom(chip);
+        int offset = slotOffset(slot);
+        ByteBuffer state = mapping.duplicate();
+        state.position(offset + SLOT_HEADER_SIZE);
+        chip.saveState(state);
+        mapping.putLong(offset + 4, System.currentTimeMillis());
+        mapping.putInt(offset, 1);
+    }
+
+    // Returns false if the slot is empty
+    public boolean load(int slot, Chip chip) {
+        checkRom(chip);
+        if (!isUsed(slot))
+            return false;
+        ByteBuffer state = mapping.duplicate();
+        state.position(slotOffset(slot) + SLOT_HEADER_SIZE);
+        chip.loadState(state);
+        return true;
+    }
+
+    // Writes dirty pages of the mapping back to disk
+    public void flush() {
+        mapping.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    private int slotOffset(int slot) {
+        if (slot < 0 || slot >= slots)
+            throw new IllegalArgumentException("No save slot " + slot + " (0-" + (slots - 1) + ")");
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private void checkRom(Chip chip) {
+        if (!Arrays.equals(chip.getRomHash(), romHash))
+            throw new IllegalArgumentException("Save states in this file belong to a different ROM");
+    }
+}
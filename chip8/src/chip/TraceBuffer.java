@@ -0,0 +1,120 @@
+package chip;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Ring buffer holding the last executed instructions: pc, opcode, I and a hash of V0-VF
+ * taken before each instruction ran. Everything lives in one preallocated int array, so recording never allocates.
+ *
+ * Dump file layout (big endian): magic "C8TR", version, entry count, then per entry
+ * pc (16 bit), opcode (16 bit), I (16 bit), V hash (32 bit), oldest entry first.
+ */
+public class TraceBuffer {
+
+    public static final int MAGIC = 0x43385452; // "C8TR"
+    public static final int VERSION = 1;
+
+    private static final int INTS_PER_ENTRY = 3;
+
+    private final int[] entries;
+    private final int mask;
+
+    // Total number of entries ever recorded; the newest one sits at (written - 1) & mask
+    private long written;
+
+    private volatile boolean dumpRequested;
+
+    // The capacity is rounded up to a power of two
+    public TraceBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        entries = new int[size * INTS_PER_ENTRY];
+        mask = size - 1;
+    }
+
+    public void record(int pc, int opcode, int I, int vHash) {
+        int base = (int) (written & mask) * INTS_PER_ENTRY;
+        entries[base] = pc << 16 | (opcode & 0xFFFF);
+        entries[base + 1] = I;
+        entries[base + 2] = vHash;
+        written++;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public int size() {
+        return (int) Math.min(written, capacity());
+    }
+
+    public void clear() {
+        written = 0;
+    }
+
+    // Lets another thread (e.g. the Swing EDT) ask the CPU thread to dump at its next frame boundary
+    public void requestDump() {
+        dumpRequested = true;
+    }
+
+    public boolean dumpIfRequested(Path file) throws IOException {
+        if (!dumpRequested)
+            return false;
+        dumpRequested = false;
+        dump(file);
+        return true;
+    }
+
+    public void dump(Path file) throws IOException {
+        int count = size();
+        ByteBuffer out = ByteBuffer.allocate(12 + count * 10);
+        out.putInt(MAGIC).putInt(VERSION).putInt(count);
+        for (long n = written - count; n < written; n++) {
+            int base = (int) (n & mask) * INTS_PER_ENTRY;
+            out.putInt(entries[base]);
+            out.putShort((short) entries[base + 1]);
+            out.putInt(entries[base + 2]);
+        }
+        out.flip();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining())
+                channel.write(out);
+        }
+    }
+
+    // Reads a dump back as rows of { pc, opcode, I, vHash }
+    public static int[][] read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not a trace dump");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported trace version " + version);
+
+            int[][] rows = new int[in.readInt()][];
+            for (int i = 0; i < rows.length; i++) {
+                int pc = in.readUnsignedShort();
+                int opcode = in.readUnsignedShort();
+                int I = in.readUnsignedShort();
+                int vHash = in.readInt();
+                rows[i] = new int[] { pc, opcode, I, vHash };
+            }
+            return rows;
+        }
+    }
+
+    // Hash of the 16 registers, computed without allocating
+    static int hashRegisters(char[] V) {
+        int hash = 1;
+        for (int i = 0; i < V.length; i++)
+            hash = 31 * hash + V[i];
+        return hash;
+    }
+}
@@ -1,6 +1,7 @@
 package emu;
 
-import chip.Chip;
+import chip.RewindBuffer;
+import chip.TraceBuffer;
 
 import javax.swing.*;
 import java.awt.*;
@@ -10,51 +11,33 @@ import java.awt.event.KeyListener;
 public class ChipFrame extends JFrame implements KeyListener {
 
     private ChipPanel chipPanel;
-    private int[] keyIdToKey;
-    private int[] keyBuffer;
+    private volatile KeyMap keyMap = new KeyMap();
 
-    public ChipFrame (Chip c) {
-        //setPreferredSize(new Dimension(640, 320));
-        pack();
-        setPreferredSize(new Dimension(640 + getInsets().right, 320 + getInsets().top + getInsets().bottom));
-        chipPanel = new ChipPanel(c);
+    // Key events go to the emulation thread through this queue; keysDown filters out the EDT's auto-repeat
+    private final KeyEventQueue keyEvents = new KeyEventQueue(64);
+    private int keysDown;
+
+    // Hotkeys: F12 dumps the instruction trace, Backspace rewinds one second (when those are enabled)
+    private volatile TraceBuffer trace;
+    private volatile RewindBuffer rewind;
+
+    public ChipFrame () {
+        this(10, Color.white, Color.black);
+    }
+
+    public ChipFrame (int scale, Color foreground, Color background) {
+        chipPanel = new ChipPanel(scale, foreground, background);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLayout(new BorderLayout());
         add(chipPanel, BorderLayout.CENTER);
 
-        keyIdToKey = new int[256];
-        keyBuffer = new int[16];
-
-        fillKeyIds();
+        addKeyListener(this);
+        setFocusTraversalKeysEnabled(false);
         pack();
         setVisible(true);
         
     }
 
-    private void fillKeyIds () {
-        for(int i=0; i<keyIdToKey.length; i++) {
-            keyIdToKey[i] = -1;
-        }
-
-        keyIdToKey['1'] = 1;
-        keyIdToKey['2'] = 2;
-        keyIdToKey['3'] = 3;
-        keyIdToKey['Q'] = 4;
-        keyIdToKey['W'] = 5;
-        keyIdToKey['E'] = 6;
-        keyIdToKey['A'] = 7;
-        keyIdToKey['S'] = 8;
-        keyIdToKey['D'] = 9;
-        keyIdToKey['Z'] = 0xA;
-        keyIdToKey['X'] = 0;
-        keyIdToKey['C'] = 0xB;
-        keyIdToKey['4'] = 0xC;
-        keyIdToKey['R'] = 0xD;
-        keyIdToKey['F'] = 0xE;
-        keyIdToKey['V'] = 0xF;
-
-    }
-
     @Override
     public void keyTyped(KeyEvent keyEvent) {
 
@@ -62,20 +45,54 @@ public class ChipFrame extends JFrame implements KeyListener {
 
     @Override
     public void keyPressed(KeyEvent keyEvent) {
-        System.out.println(keyEvent.getKeyCode());
-        if(keyIdToKey[keyEvent.getKeyCode()] != -1) {
-            keyBuffer[keyEvent.getKeyCode()] = 1;
+        int code = keyEvent.getKeyCode();
+        if (code == KeyEvent.VK_F12 && trace != null) {
+            trace.requestDump();
+            keyEvents.wake();
+        } else if (code == KeyEvent.VK_BACK_SPACE && rewind != null) {
+            rewind.requestRewind(60);
+            keyEvents.wake();
         }
+        keyChanged(code, true);
     }
 
     @Override
     public void keyReleased(KeyEvent keyEvent) {
-        if(keyIdToKey[keyEvent.getKeyCode()] != -1) {
-            keyBuffer[keyIdToKey[keyEvent.getKeyCode()]] = 0;
-        }
+        keyChanged(keyEvent.getKeyCode(), false);
+    }
+
+    private void keyChanged(int code, boolean pressed) {
+        int key = keyMap.getKey(code);
+        if (key < 0 || ((keysDown >> key) & 1) == (pressed ? 1 : 0))
+            return;
+        keysDown ^= 1 << key;
+        keyEvents.offer(key, pressed, System.nanoTime());
+    }
+
+    // Shows a frame, see ChipPanel.present()
+    public void present(long[] rows, int dirtyRows) {
+        chipPanel.present(rows, dirtyRows);
+    }
+
+    // Records how long each paint takes, see EmulatorMetrics
+    public void setPaintTimes(Histogram paintTimes) {
+        chipPanel.setPaintTimes(paintTimes);
+    }
+
+    public void setKeyMap(KeyMap keyMap) {
+        this.keyMap = keyMap;
+    }
+
+    public void setTrace(TraceBuffer trace) {
+        this.trace = trace;
+    }
+
+    public void setRewind(RewindBuffer rewind) {
+        this.rewind = rewind;
     }
 
-    public int[] getKeyBuffer() {
-        return keyBuffer;
+    // Key presses and releases, to be applied by the emulation thread
+    public KeyEventQueue getKeyEvents() {
+        return keyEvents;
     }
 }
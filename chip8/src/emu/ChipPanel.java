@@ -1,34 +1,109 @@
 package emu;
 
-import chip.Chip;
-
 import javax.swing.*;
 import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ChipPanel extends JPanel {
 
-    private Chip chip;
+    // Triple buffering between present() on the emulation thread and paint() on the EDT. Each side owns one of
+    // the three frames (back and front); the third is exchanged through published, which holds its index and
+    // FRESH while it holds a frame the EDT has not taken yet. Neither side ever waits for the other, and the EDT
+    // only reads frames that were completely written before they were published.
+    private static final int FRESH = 4;
+
+    private final long[][] frames = new long[3][32];
+    private final AtomicInteger published = new AtomicInteger(2);
+
+    // Emulation thread: the display as of the last present() and the frame it writes next
+    private final long[] latest = new long[32];
+    private int back = 0;
+
+    // EDT: the frame being shown, the rows last copied into the image and rows to redraw regardless
+    private int front = 1;
+    private final long[] painted = new long[32];
+    private int staleRows = 0xFFFFFFFF;
+
+    // The framebuffer at one image pixel per CHIP-8 pixel, scaled up when it is drawn
+    private BufferedImage image;
+    private int[] pixels;
+
+    private int scale;
+    private int foreground;
+    private int background;
 
-    public ChipPanel(Chip chip) {
-        this.chip = chip;
+    // Duration of each paint(), recorded on the EDT when metrics are enabled
+    private Histogram paintTimes;
+
+    public ChipPanel() {
+        this(10, Color.white, Color.black);
     }
 
-    public void paint(Graphics g) {
-        byte[] display = chip.getDisplay();
+    public ChipPanel(int scale, Color foreground, Color background) {
+        this.scale = scale;
+        this.foreground = foreground.getRGB();
+        this.background = background.getRGB();
 
-        for(int i = 0; i < display.length; i++) {
-            if (display[i] == 0) {
-                g.setColor(Color.black);
-            }
-            else {
-                g.setColor(Color.white);
+        image = new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+        setPreferredSize(new Dimension(64 * scale, 32 * scale));
+    }
+
+    // Takes the rows marked in dirtyRows (e.g. from Chip.takeDirtyRows(), or all of them) from the given frame
+    // and, if any of them actually changed, publishes the result. Repaints are coalesced: while the EDT has not
+    // taken the previously published frame, the new one replaces it without asking for another repaint.
+    public void present(long[] rows, int dirtyRows) {
+        boolean changed = false;
+        for (int candidates = dirtyRows; candidates != 0; candidates &= candidates - 1) {
+            int y = Integer.numberOfTrailingZeros(candidates);
+            if (latest[y] != rows[y]) {
+                latest[y] = rows[y];
+                changed = true;
             }
+        }
+        if (!changed)
+            return;
+
+        System.arraycopy(latest, 0, frames[back], 0, 32);
+        int previous = published.getAndSet(back | FRESH);
+        back = previous & ~FRESH;
+        if ((previous & FRESH) == 0)
+            repaint();
+    }
+
+    public void setPaintTimes(Histogram paintTimes) {
+        this.paintTimes = paintTimes;
+    }
 
-            int x = i % 64;
-            int y = (int) Math.floor(i / 64);
+    public void paint(Graphics g) {
+        long start = paintTimes != null ? System.nanoTime() : 0;
+        if ((published.get() & FRESH) != 0)
+            front = published.getAndSet(front) & ~FRESH;
 
-            g.fillRect(x * 10, y * 10, 10, 10);
+        long[] frame = frames[front];
+        int dirty = staleRows;
+        for (int y = 0; y < 32; y++) {
+            if (frame[y] != painted[y])
+                dirty |= 1 << y;
         }
+        staleRows = 0;
+        while (dirty != 0) {
+            int y = Integer.numberOfTrailingZeros(dirty);
+            dirty &= dirty - 1;
+
+            long row = frame[y];
+            painted[y] = row;
+            int offset = y * 64;
+            for(int x = 0; x < 64; x++)
+                pixels[offset + x] = (row << x) < 0 ? foreground : background; // x = 0 is the top bit of the row
+        }
+
+        g.drawImage(image, 0, 0, 64 * scale, 32 * scale, null);
+        if (paintTimes != null)
+            paintTimes.record(System.nanoTime() - start);
     }
 
 }
@@ -0,0 +1,187 @@
+package emu;
+
+import chip.Chip;
+import chip.ChipFault;
+import chip.Debugger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+
+// Headless debugger on standard input: breakpoints, watchpoints, stepping and inspection of a ROM looked up like
+// Main does. Addresses and values are hex. Type "help" for the commands.
+// Usage: DebugConsole <rom> [hz]
+public class DebugConsole {
+
+    private static final long DEFAULT_FRAMES = 3600;
+
+    private static final String HELP = String.join(System.lineSeparator(),
+            "b <addr>                  set a breakpoint",
+            "d <addr>                  delete a breakpoint",
+            "w <addr>[-<addr>] [r|w]   watch memory (default both)",
+            "w V0-VF|I [r|w]           watch a register",
+            "dw <n>                    delete watchpoint n",
+            "l                         list breakpoints and watchpoints",
+            "s [n]                     step n instructions",
+            "n                         step, over a 2NNN",
+            "c [frames]                continue, for at most " + DEFAULT_FRAMES + " frames by default",
+            "r                         registers",
+            "m <addr> [bytes]          dump memory",
+            "k <mask>                  set the keys down, one bit per key",
+            "p                         print the display",
+            "q                         quit");
+
+    private final Chip chip;
+    private final Debugger debugger;
+
+    private DebugConsole(Chip chip) {
+        this.chip = chip;
+        this.debugger = new Debugger(chip);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: DebugConsole <rom> [hz]");
+            return;
+        }
+        byte[] rom = Main.findRom(args[0]);
+        if (rom == null) {
+            System.err.println("No ROM named " + args[0] + " in the library");
+            return;
+        }
+
+        Chip chip = new Chip();
+        chip.init();
+        chip.setRecompiler(Boolean.getBoolean("chip8.recompiler"));
+        chip.setCyclesPerFrame(Math.max(1, (args.length > 1 ? Integer.parseInt(args[1]) : 600) / 60));
+        chip.loadProgram(rom);
+        chip.setSeed(Long.getLong("chip8.seed", 0));
+
+        DebugConsole console = new DebugConsole(chip);
+        console.printLocation();
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        while (true) {
+            System.out.print("> ");
+            System.out.flush();
+            if ((line = in.readLine()) == null || line.trim().equals("q"))
+                break;
+            try {
+                console.execute(line.trim().split("\\s+"));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                System.out.println("? " + e.getMessage() + " (try help)");
+            } catch (ChipFault e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+    private void execute(String[] words) {
+        switch (words[0]) {
+            case "":
+                break;
+            case "help":
+                System.out.println(HELP);
+                break;
+            case "b":
+                debugger.addBreakpoint(hex(words[1]));
+                break;
+            case "d":
+                debugger.removeBreakpoint(hex(words[1]));
+                break;
+            case "w":
+                watch(words);
+                break;
+            case "dw":
+                debugger.removeWatch(Integer.parseInt(words[1]));
+                break;
+            case "l":
+                for (int address : debugger.getBreakpoints())
+                    System.out.println(String.format("break %03X", address));
+                List<String> watches = debugger.getWatches();
+                for (int i = 0; i < watches.size(); i++)
+                    System.out.println(String.format("watch %d: %s", i, watches.get(i)));
+                break;
+            case "s":
+                for (int i = words.length > 1 ? Integer.parseInt(words[1]) : 1; i > 0; i--)
+                    debugger.step();
+                printLocation();
+                break;
+            case "n":
+                stopped(debugger.stepOver(DEFAULT_FRAMES));
+                break;
+            case "c":
+                stopped(debugger.resume(words.length > 1 ? Long.parseLong(words[1]) : DEFAULT_FRAMES));
+                break;
+            case "r":
+                System.out.println(debugger.describeRegisters());
+                break;
+            case "m":
+                dump(hex(words[1]), words.length > 2 ? hex(words[2]) : 0x10);
+                break;
+            case "k":
+                chip.setKeyMask(hex(words[1]));
+                break;
+            case "p":
+                printDisplay();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command " + words[0]);
+        }
+    }
+
+    private void watch(String[] words) {
+        String target = words[1].toUpperCase();
+        String mode = words.length > 2 ? words[2] : "rw";
+        boolean read = mode.contains("r");
+        boolean write = mode.contains("w");
+        if (target.equals("I")) {
+            debugger.watchRegister(Debugger.REGISTER_I, read, write);
+        } else if (target.length() == 2 && target.charAt(0) == 'V') {
+            debugger.watchRegister(hex(target.substring(1)), read, write);
+        } else {
+            int dash = target.indexOf('-');
+            int from = hex(dash < 0 ? target : target.substring(0, dash));
+            int to = dash < 0 ? from : hex(target.substring(dash + 1));
+            debugger.watchMemory(from, to, read, write);
+        }
+    }
+
+    private void stopped(String reason) {
+        if (reason != null)
+            System.out.println("Stopped: " + reason);
+        printLocation();
+    }
+
+    private void printLocation() {
+        int opcode = debugger.getOpcode();
+        System.out.println(String.format("%03X  %04X  %-14s frame %d +%d", debugger.getPc(), opcode,
+                TraceDecoder.disassemble(opcode), chip.getFrameCount(), debugger.getFrameCycles()));
+    }
+
+    private void dump(int from, int length) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            if (i % 16 == 0)
+                out.append(i == 0 ? "" : System.lineSeparator()).append(String.format("%03X ", (from + i) & 0xFFF));
+            out.append(String.format(" %02X", debugger.readMemory(from + i)));
+        }
+        System.out.println(out);
+    }
+
+    private void printDisplay() {
+        long[] rows = chip.getDisplayRows();
+        StringBuilder out = new StringBuilder();
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 64; x++)
+                out.append(Chip.isPixelSet(rows, x, y) ? '#' : '.');
+            out.append(System.lineSeparator());
+        }
+        System.out.print(out);
+    }
+
+    private static int hex(String text) {
+        return Integer.parseInt(text.startsWith("0x") ? text.substring(2) : text, 16);
+    }
+}
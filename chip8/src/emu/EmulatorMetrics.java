@@ -0,0 +1,204 @@
+package emu;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Live performance counters of the emulation loop, exposed over JMX and as a text dump.
+ *
+ * Every counter has a single writer: the emulation thread records frames (frameDone()) and input latency
+ * (inputApplied()), the Swing EDT records paints into paintTimes (see ChipPanel), and Chip counts opcode families
+ * into the plain array handed to Chip.setOpcodeCounts(), which frameDone() copies into publishedOpcodeCounts from
+ * the same thread. Writers publish with lazySet and never wait on each other or on the readers, so JMX clients
+ * only ever see values that may be a frame old.
+ */
+public class EmulatorMetrics implements EmulatorMetricsMBean {
+
+    private static final long WINDOW_NANOS = 1_000_000_000L;
+
+    private final FramePacer pacer;
+    private final Histogram frameTimes = new Histogram();
+    private final Histogram paintTimes = new Histogram();
+    private final Histogram inputLatency = new Histogram();
+    private volatile KeyEventQueue keyEvents;
+    private final long[] opcodeCounts = new long[16];
+    private final AtomicLongArray publishedOpcodeCounts = new AtomicLongArray(16);
+
+    private final AtomicLong instructions = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong redraws = new AtomicLong();
+
+    // Rates over the last completed one-second window
+    private long windowStart = System.nanoTime();
+    private long windowInstructions;
+    private long windowFrames;
+    private volatile double instructionsPerSecond;
+    private volatile double timerTickRate;
+
+    public EmulatorMetrics(FramePacer pacer) {
+        this.pacer = pacer;
+    }
+
+    // Registers the MBean with the platform MBean server
+    public void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("chip8:type=EmulatorMetrics"));
+    }
+
+    public Histogram getPaintTimes() {
+        return paintTimes;
+    }
+
+    // Queue whose dropped events are reported
+    public void setKeyEvents(KeyEventQueue keyEvents) {
+        this.keyEvents = keyEvents;
+    }
+
+    // Array Chip.setOpcodeCounts() counts into; only the emulation thread may read it
+    public long[] getOpcodeCountArray() {
+        return opcodeCounts;
+    }
+
+    // Called by the emulation thread after each real frame: the time it took to emulate and present it, the
+    // instructions it executed (each frame ticks the timers once) and whether it redrew the display
+    public void frameDone(long nanos, int executed, boolean redrawn) {
+        frameTimes.record(nanos);
+        instructions.lazySet(instructions.get() + executed);
+        frames.lazySet(frames.get() + 1);
+        if (redrawn)
+            redraws.lazySet(redraws.get() + 1);
+        for (int family = 0; family < opcodeCounts.length; family++)
+            publishedOpcodeCounts.lazySet(family, opcodeCounts[family]);
+
+        windowInstructions += executed;
+        windowFrames++;
+        long now = System.nanoTime();
+        long elapsed = now - windowStart;
+        if (elapsed >= WINDOW_NANOS) {
+            instructionsPerSecond = windowInstructions * 1e9 / elapsed;
+            timerTickRate = windowFrames * 1e9 / elapsed;
+            windowStart = now;
+            windowInstructions = 0;
+            windowFrames = 0;
+        }
+    }
+
+    // Called by the emulation thread at the end of a frame that applied key events: the time from the oldest of
+    // them being queued by the EDT until the frame reflecting it was emulated and presented
+    public void inputApplied(long nanos) {
+        inputLatency.record(nanos);
+    }
+
+    @Override
+    public double getInstructionsPerSecond() {
+        return instructionsPerSecond;
+    }
+
+    @Override
+    public long getInstructions() {
+        return instructions.get();
+    }
+
+    @Override
+    public long getFrames() {
+        return frames.get();
+    }
+
+    @Override
+    public double getTimerTickRate() {
+        return timerTickRate;
+    }
+
+    @Override
+    public long getRedraws() {
+        return redraws.get();
+    }
+
+    @Override
+    public long getLateFrames() {
+        return pacer.getLateFrames();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return pacer.getDroppedFrames();
+    }
+
+    @Override
+    public double getFrameTimeMeanMicros() {
+        return frameTimes.getMeanMicros();
+    }
+
+    @Override
+    public long getFrameTimeP99Micros() {
+        return frameTimes.getPercentileMicros(0.99);
+    }
+
+    @Override
+    public long[] getFrameTimeBuckets() {
+        return frameTimes.getBuckets();
+    }
+
+    @Override
+    public double getPaintTimeMeanMicros() {
+        return paintTimes.getMeanMicros();
+    }
+
+    @Override
+    public long getPaintTimeP99Micros() {
+        return paintTimes.getPercentileMicros(0.99);
+    }
+
+    @Override
+    public long[] getPaintTimeBuckets() {
+        return paintTimes.getBuckets();
+    }
+
+    @Override
+    public double getInputLatencyMeanMicros() {
+        return inputLatency.getMeanMicros();
+    }
+
+    @Override
+    public long getInputLatencyP99Micros() {
+        return inputLatency.getPercentileMicros(0.99);
+    }
+
+    @Override
+    public long[] getInputLatencyBuckets() {
+        return inputLatency.getBuckets();
+    }
+
+    @Override
+    public long getDroppedKeyEvents() {
+        KeyEventQueue queue = keyEvents;
+        return queue != null ? queue.getDropped() : 0;
+    }
+
+    @Override
+    public long[] getOpcodeFamilyCounts() {
+        long[] counts = new long[publishedOpcodeCounts.length()];
+        for (int family = 0; family < counts.length; family++)
+            counts[family] = publishedOpcodeCounts.get(family);
+        return counts;
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("instructions/s %.0f (total %d)%n", getInstructionsPerSecond(), getInstructions()));
+        text.append(String.format("frames %d, timer ticks/s %.1f, redraws %d, late %d, dropped %d%n",
+                getFrames(), getTimerTickRate(), getRedraws(), getLateFrames(), getDroppedFrames()));
+        text.append("frame time ").append(frameTimes).append(System.lineSeparator());
+        text.append("paint time ").append(paintTimes).append(System.lineSeparator());
+        text.append("input latency ").append(inputLatency).append(String.format(", dropped key events %d%n", getDroppedKeyEvents()));
+
+        long[] counts = getOpcodeFamilyCounts();
+        text.append("opcode families");
+        for (int family = 0; family < counts.length; family++)
+            text.append(String.format(" %Xxxx:%d", family, counts[family]));
+        return text.append(System.lineSeparator()).toString();
+    }
+}
@@ -0,0 +1,48 @@
+package emu;
+
+// Management interface of EmulatorMetrics, registered as chip8:type=EmulatorMetrics
+public interface EmulatorMetricsMBean {
+
+    // Instructions actually executed per second of the last second; lower while opcode families are counted
+    double getInstructionsPerSecond();
+
+    long getInstructions();
+
+    long getFrames();
+
+    double getTimerTickRate();
+
+    long getRedraws();
+
+    long getLateFrames();
+
+    long getDroppedFrames();
+
+    double getFrameTimeMeanMicros();
+
+    long getFrameTimeP99Micros();
+
+    long[] getFrameTimeBuckets();
+
+    double getPaintTimeMeanMicros();
+
+    long getPaintTimeP99Micros();
+
+    long[] getPaintTimeBuckets();
+
+    // Key event to the end of the frame that applied it
+    double getInputLatencyMeanMicros();
+
+    long getInputLatencyP99Micros();
+
+    long[] getInputLatencyBuckets();
+
+    long getDroppedKeyEvents();
+
+    // Instructions executed per opcode family 0x0-0xF (high nibble), as of the last frame; all zero unless counting
+    // was enabled. Counting sees every instruction, so the chip then interprets them all, without the recompiler
+    // and without idle-loop skipping, and the instruction rates measure that slower configuration.
+    long[] getOpcodeFamilyCounts();
+
+    String dump();
+}
@@ -0,0 +1,62 @@
+package emu;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Paces the emulation loop against absolute System.nanoTime() deadlines, so the time spent running
+// a frame is taken off the wait instead of being added to it and small errors do not add up.
+public class FramePacer {
+
+    private long frameNanos;
+
+    // How many frames the loop may fall behind before it gives up catching up and starts again from now
+    private int maxCatchUpFrames;
+
+    private long deadline;
+
+    // Frames that finished after their deadline, and frames dropped by resynchronising. Only the pacing thread
+    // writes them; volatile so that metrics can read them from other threads.
+    private volatile long lateFrames;
+    private volatile long droppedFrames;
+
+    public FramePacer(int framesPerSecond, int maxCatchUpFrames) {
+        this.frameNanos = 1_000_000_000L / framesPerSecond;
+        this.maxCatchUpFrames = maxCatchUpFrames;
+    }
+
+    public void start() {
+        deadline = System.nanoTime() + frameNanos;
+    }
+
+    // Waits until the current frame's deadline and moves on to the next one. Returns false when the loop is
+    // behind schedule, in which case the caller should run the next frame straight away and skip rendering it.
+    public boolean awaitNextFrame() {
+        long now = System.nanoTime();
+        long remaining = deadline - now;
+
+        if (remaining > 0) {
+            while (remaining > 0) { // parkNanos may return early
+                LockSupport.parkNanos(remaining);
+                remaining = deadline - System.nanoTime();
+            }
+            deadline += frameNanos;
+            return true;
+        }
+
+        lateFrames++;
+        if (-remaining > maxCatchUpFrames * frameNanos) {
+            droppedFrames += -remaining / frameNanos;
+            deadline = now + frameNanos;
+            return true;
+        }
+        deadline += frameNanos;
+        return false;
+    }
+
+    public long getLateFrames() {
+        return lateFrames;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+}
@@ -0,0 +1,70 @@
+package emu;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Latency histogram with power-of-two microsecond buckets: bucket 0 counts durations below 1 us, bucket i those
+// in [2^(i-1), 2^i) us, the last bucket everything longer. Meant to be recorded by one thread only and read by
+// any other: the recording thread publishes with lazySet, so recording never contends with readers.
+public class Histogram {
+
+    public static final int BUCKETS = 22; // up to ~1 s
+
+    // BUCKETS counts, then the total count, the sum and the maximum of all durations in nanoseconds
+    private final AtomicLongArray values = new AtomicLongArray(BUCKETS + 3);
+
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        values.lazySet(bucket, values.get(bucket) + 1);
+        values.lazySet(BUCKETS, values.get(BUCKETS) + 1);
+        values.lazySet(BUCKETS + 1, values.get(BUCKETS + 1) + nanos);
+        if (nanos > values.get(BUCKETS + 2))
+            values.lazySet(BUCKETS + 2, nanos);
+    }
+
+    public long getCount() {
+        return values.get(BUCKETS);
+    }
+
+    public double getMeanMicros() {
+        long count = getCount();
+        return count == 0 ? 0 : values.get(BUCKETS + 1) / 1000.0 / count;
+    }
+
+    public double getMaxMicros() {
+        return values.get(BUCKETS + 2) / 1000.0;
+    }
+
+    // Upper bound in microseconds of the bucket holding the given fraction (e.g. 0.99) of all durations
+    public long getPercentileMicros(double fraction) {
+        long count = getCount();
+        if (count == 0)
+            return 0;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += values.get(i);
+            if (seen > 0 && seen >= fraction * count)
+                return 1L << i;
+        }
+        return 1L << BUCKETS;
+    }
+
+    public long[] getBuckets() {
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = values.get(i);
+        return buckets;
+    }
+
+    // Non-empty buckets as "<1us:12 <2us:40 ...", followed by the mean, p99 and maximum
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = values.get(i);
+            if (count != 0)
+                text.append(i == BUCKETS - 1 ? ">=" + (1L << (i - 1)) : "<" + (1L << i)).append("us:").append(count).append(' ');
+        }
+        return text.append(String.format("mean %.1fus p99 <%dus max %.1fus", getMeanMicros(), getPercentileMicros(0.99), getMaxMicros())).toString();
+    }
+}
@@ -0,0 +1,106 @@
+package emu;
+
+import chip.Chip;
+import chip.ChipSnapshot;
+import chip.RomLibrary;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Reports per ROM how much of the instruction budget goes to idle loops that Chip skips, and the host CPU time
+// per emulated second with and without skipping. Both runs get the same seed and scripted key taps, and every
+// frame is checked to end in the same state. ROMs are looked up in the library (see Main.openLibrary()); without
+// any, all of its ROMs are reported. Usage: IdleLoopReport <hz> [rom]...
+public class IdleLoopReport {
+
+    private static final int FRAMES = 3600;
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: IdleLoopReport <hz> [rom]...");
+            return;
+        }
+
+        int cyclesPerFrame = Math.max(1, Integer.parseInt(args[0]) / 60);
+        List<RomLibrary.Entry> roms;
+        try {
+            roms = Main.findRoms(Arrays.asList(args).subList(1, args.length));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        System.out.println(String.format("%-16s %8s %10s %10s %8s", "rom", "idle", "ms/s off", "ms/s on", "saved"));
+        for (RomLibrary.Entry rom : roms)
+            report(rom, cyclesPerFrame);
+    }
+
+    private static void report(RomLibrary.Entry entry, int cyclesPerFrame) {
+        try {
+            byte[] rom = RomLibrary.readRom(entry.getPath());
+            int[] keys = script();
+            Chip plain = start(rom, cyclesPerFrame, false);
+            Chip skipping = start(rom, cyclesPerFrame, true);
+            ChipSnapshot expected = new ChipSnapshot();
+            ChipSnapshot actual = new ChipSnapshot();
+            for (int f = 0; f < FRAMES; f++) {
+                plain.setKeyMask(keys[f]);
+                skipping.setKeyMask(keys[f]);
+                plain.runFrame();
+                skipping.runFrame();
+                plain.snapshot(expected);
+                skipping.snapshot(actual);
+                if (!expected.sameState(actual)) {
+                    System.out.println(String.format("%-16s %8s", entry.getName(), "differs at frame " + f));
+                    return;
+                }
+            }
+            double idle = (double) skipping.getIdleInstructions() / ((long) FRAMES * cyclesPerFrame);
+
+            // best of a few runs, so the JIT has warmed up by the last one
+            long off = Long.MAX_VALUE;
+            long on = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                off = Math.min(off, time(start(rom, cyclesPerFrame, false), keys));
+                on = Math.min(on, time(start(rom, cyclesPerFrame, true), keys));
+            }
+            double seconds = FRAMES / 60.0;
+            System.out.println(String.format("%-16s %7.1f%% %10.3f %10.3f %7.1f%%", entry.getName(), idle * 100,
+                    off / 1e6 / seconds, on / 1e6 / seconds, 100.0 * (off - on) / off));
+        } catch (IOException | RuntimeException e) {
+            System.out.println(String.format("%-16s %8s", entry.getName(), "fault: " + e));
+        }
+    }
+
+    // A short tap of a random key about every two seconds
+    private static int[] script() {
+        Random random = new Random(1);
+        int[] keys = new int[FRAMES];
+        for (int f = 0; f + 6 < FRAMES; f += 60 + random.nextInt(120)) {
+            int key = 1 << random.nextInt(16);
+            Arrays.fill(keys, f, f + 6, key);
+        }
+        return keys;
+    }
+
+    private static Chip start(byte[] rom, int cyclesPerFrame, boolean skipIdle) {
+        Chip chip = new Chip();
+        chip.init();
+        chip.loadProgram(rom);
+        chip.setSeed(0);
+        chip.setCyclesPerFrame(cyclesPerFrame);
+        chip.setIdleLoopSkipping(skipIdle);
+        return chip;
+    }
+
+    private static long time(Chip chip, int[] keys) {
+        long start = System.nanoTime();
+        for (int f = 0; f < FRAMES; f++) {
+            chip.setKeyMask(keys[f]);
+            chip.runFrame();
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,129 @@
+package emu;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer queue of timestamped key events, from the Swing EDT (offer()) to the
+ * emulation thread (apply(), called at frame boundaries).
+ *
+ * Events live in a fixed ring of parallel arrays. Each side owns one index and publishes it after touching the
+ * slots, and reads the other side's index only when it has to, so neither thread ever blocks or allocates. A full
+ * queue drops the new event and counts it rather than stall the EDT. The consumer may also park in await() while
+ * the emulated program waits for a key; the producer unparks it after publishing.
+ */
+public class KeyEventQueue {
+
+    private final long[] times;
+    private final int[] events; // chip key << 1 | 1 if pressed
+    private final int indexMask;
+
+    private final AtomicLong head = new AtomicLong(); // next event to apply, written by the consumer
+    private final AtomicLong tail = new AtomicLong(); // next free slot, written by the producer
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Consumer thread while it is parked in await(), and a wake-up requested without an event
+    private volatile Thread parked;
+    private volatile boolean wakeRequested;
+
+    // Producer's last view of head, so a non-full queue never reads the consumer's index
+    private long headSeen;
+
+    // Consumer: events taken by the last apply() and the timestamp of the oldest of them
+    private int applied;
+    private long oldestApplied;
+
+    public KeyEventQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        times = new long[size];
+        events = new int[size];
+        indexMask = size - 1;
+    }
+
+    // Producer: queues a press or release of chip key 0-F that happened at the given System.nanoTime()
+    public boolean offer(int key, boolean pressed, long nanos) {
+        long t = tail.get();
+        if (t - headSeen == events.length) {
+            headSeen = head.get();
+            if (t - headSeen == events.length) {
+                dropped.lazySet(dropped.get() + 1);
+                return false;
+            }
+        }
+        int slot = (int) t & indexMask;
+        times[slot] = nanos;
+        events[slot] = key << 1 | (pressed ? 1 : 0);
+        tail.set(t + 1); // a full volatile store, so a consumer entering await() either sees it or gets unparked
+        unparkConsumer();
+        return true;
+    }
+
+    // Producer: wakes the consumer from await() without an event, e.g. for a hotkey it has to act on
+    public void wake() {
+        wakeRequested = true;
+        unparkConsumer();
+    }
+
+    // Consumer: parks the calling thread until an event is queued or wake() is called
+    public void await() {
+        parked = Thread.currentThread();
+        while (head.get() == tail.get() && !wakeRequested)
+            LockSupport.park(this);
+        parked = null;
+        wakeRequested = false;
+    }
+
+    // Consumer: whether no event is waiting to be applied
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    private void unparkConsumer() {
+        Thread thread = parked;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    // Consumer: applies the queued events to a key mask (one bit per key 0-F) and returns the new mask. A key
+    // pressed and released again since the last call stays down for this frame: its release and everything after
+    // it are left queued for the next call, so taps shorter than a frame still reach the program.
+    public int apply(int keyMask) {
+        long h = head.get();
+        long t = tail.get();
+        int pressedNow = 0;
+        applied = 0;
+        for (; h < t; h++) {
+            int slot = (int) h & indexMask;
+            int event = events[slot];
+            int bit = 1 << (event >>> 1);
+            boolean pressed = (event & 1) != 0;
+            if (!pressed && (pressedNow & bit) != 0)
+                break;
+            if (applied++ == 0)
+                oldestApplied = times[slot];
+            if (pressed) {
+                keyMask |= bit;
+                pressedNow |= bit;
+            } else {
+                keyMask &= ~bit;
+            }
+        }
+        head.lazySet(h);
+        return keyMask;
+    }
+
+    // Events applied by the last apply()
+    public int getApplied() {
+        return applied;
+    }
+
+    // System.nanoTime() of the oldest event applied by the last apply(), valid if getApplied() > 0
+    public long getOldestApplied() {
+        return oldestApplied;
+    }
+
+    // Events dropped because the queue was full
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,69 @@
+package emu;
+
+import java.awt.event.KeyEvent;
+import java.util.Arrays;
+
+/**
+ * Maps AWT key codes to the 16 CHIP-8 keys. The default is the usual layout of the hex keypad on the left of a
+ * QWERTY keyboard:
+ *
+ *   1 2 3 C      1 2 3 4
+ *   4 5 6 D  <-  Q W E R
+ *   7 8 9 E      A S D F
+ *   A 0 B F      Z X C V
+ *
+ * parse() rebinds keys from a list like "0=SPACE,5=UP,8=DOWN", each entry a CHIP-8 key in hex and the name of a
+ * KeyEvent.VK_ constant without the prefix. A rebound CHIP-8 key loses its default binding.
+ */
+public class KeyMap {
+
+    private static final int CODES = 1024;
+    private static final String DEFAULT = "1=1,2=2,3=3,C=4,4=Q,5=W,6=E,D=R,7=A,8=S,9=D,E=F,A=Z,0=X,B=C,F=V";
+
+    private final int[] codeToKey = new int[CODES];
+
+    public KeyMap() {
+        Arrays.fill(codeToKey, -1);
+        bind(DEFAULT);
+    }
+
+    // The default layout with the given bindings applied on top
+    public static KeyMap parse(String bindings) {
+        KeyMap map = new KeyMap();
+        map.bind(bindings);
+        return map;
+    }
+
+    // CHIP-8 key 0-F bound to the key code, or -1
+    public int getKey(int keyCode) {
+        return keyCode >= 0 && keyCode < CODES ? codeToKey[keyCode] : -1;
+    }
+
+    private void bind(String bindings) {
+        for (String binding : bindings.split(",")) {
+            String[] parts = binding.trim().split("=");
+            if (parts.length != 2)
+                throw new IllegalArgumentException("Key binding " + binding + " is not <chip key>=<key name>");
+            int key = Integer.parseInt(parts[0].trim(), 16);
+            if (key < 0 || key > 0xF)
+                throw new IllegalArgumentException("CHIP-8 key " + parts[0] + " is not 0-F");
+            int code = keyCode(parts[1].trim());
+            for (int i = 0; i < CODES; i++) {
+                if (codeToKey[i] == key)
+                    codeToKey[i] = -1;
+            }
+            codeToKey[code] = key;
+        }
+    }
+
+    private static int keyCode(String name) {
+        try {
+            int code = KeyEvent.class.getField("VK_" + name.toUpperCase()).getInt(null);
+            if (code < 0 || code >= CODES)
+                throw new IllegalArgumentException("Key " + name + " cannot be bound");
+            return code;
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new IllegalArgumentException("Unknown key " + name);
+        }
+    }
+}
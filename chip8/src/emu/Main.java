@@ -1,41 +1,367 @@
 package emu;
 
 import chip.Chip;
+import chip.ChipFault;
+import chip.InputMovie;
+import chip.RewindBuffer;
+import chip.RomLibrary;
+import chip.RunAhead;
+import chip.SaveStateFile;
+import chip.TraceBuffer;
 
+import javax.management.JMException;
+import java.awt.*;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 
 public class Main extends Thread {
 
+    private static final long FRAME_NANOS = 1_000_000_000L / 60;
+
     private Chip chip8;
     private ChipFrame chipFrame;
+    private FramePacer pacer;
+
+    // Keys from the window, applied at every frame boundary; -Dchip8.keymap=<bindings> rebinds them (see KeyMap)
+    private KeyEventQueue keyEvents;
+    private int heldKeys;
+
+    // Instruction trace enabled with -Dchip8.trace=<entries>, dumped on request and when the JVM exits
+    private TraceBuffer trace;
+    private Path traceFile;
+
+    // Save states: -Dchip8.saveFile=<file> resumes from -Dchip8.slot on start and, with -Dchip8.checkpoint=<frames>,
+    // checkpoints into that slot every so many frames
+    private SaveStateFile saves;
+    private int saveSlot;
+    private int checkpointInterval;
+
+    // Input movie: -Dchip8.record=<file> records the session from power-on, written when the JVM exits;
+    // -Dchip8.replay=<file> plays one back before handing over to the keyboard. -Dchip8.seed=<n> fixes CXNN.
+    private InputMovie recording;
+    private Path recordFile;
+    private InputMovie replay;
+
+    // Gameplay video of -Dchip8.video=<file>, encoded on its own thread (see VideoRecorder) and closed when the
+    // JVM exits; -Dchip8.videoBuffer=<frames> sizes the ring that absorbs encoder stalls
+    private VideoRecorder video;
+
+    // Run-ahead of -Dchip8.runahead=<frames>; shows the display that many frames into the future
+    private RunAhead runAhead;
+
+    // Rewind history of -Dchip8.rewind=<seconds>, captured at every frame boundary
+    private RewindBuffer rewind;
+
+    // Turbo runs frames back to back without pacing and renders only every renderInterval-th frame
+    private boolean turbo;
+    private int renderInterval;
 
-    public Main () {
+    // Performance counters, on with -Dchip8.metrics=true (JMX) and/or -Dchip8.metricsInterval=<seconds> (text dump
+    // to stdout); -Dchip8.opcodeCounts=true also counts opcode families, which makes the chip interpret every
+    // instruction, without the recompiler or idle-loop skipping, so the instruction rate drops while it is on
+    private EmulatorMetrics metrics;
+    private long metricsIntervalFrames;
+
+    public Main (byte[] rom) {
         chip8 = new Chip();
         chip8.init();
-        chip8.loadProgram("games/PONG2");
-        chipFrame = new ChipFrame(chip8);
+        chip8.setRecompiler(Boolean.getBoolean("chip8.recompiler"));
+        chip8.setCyclesPerFrame(Math.max(1, Integer.getInteger("chip8.hz", 600) / 60));
+        chip8.loadProgram(rom);
+        if (Long.getLong("chip8.seed") != null)
+            chip8.setSeed(Long.getLong("chip8.seed"));
+
+        String replayFile = System.getProperty("chip8.replay");
+        if (replayFile != null) {
+            try {
+                replay = InputMovie.read(Paths.get(replayFile));
+                replay.start(chip8);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Replay disabled: " + e.getMessage());
+                replay = null;
+            }
+        }
+        String recordFile = System.getProperty("chip8.record");
+        if (recordFile != null) {
+            long seed = replay != null ? replay.getSeed() : Long.getLong("chip8.seed", System.nanoTime());
+            chip8.setSeed(seed);
+            recording = new InputMovie(chip8.getRomHash(), seed, chip8.getCyclesPerFrame());
+            this.recordFile = Paths.get(recordFile);
+            Runtime.getRuntime().addShutdownHook(new Thread(this::writeRecording));
+        }
+
+        String videoFile = System.getProperty("chip8.video");
+        if (videoFile != null) {
+            try {
+                video = new VideoRecorder(Paths.get(videoFile), Integer.getInteger("chip8.videoBuffer", 256));
+                Runtime.getRuntime().addShutdownHook(new Thread(this::closeVideo));
+            } catch (IOException e) {
+                System.err.println("Video disabled: " + e.getMessage());
+            }
+        }
+
+        int traceEntries = Integer.getInteger("chip8.trace", 0);
+        if (traceEntries > 0) {
+            trace = new TraceBuffer(traceEntries);
+            traceFile = Paths.get(System.getProperty("chip8.traceFile", "chip8.trace"));
+            chip8.setTrace(trace);
+            Runtime.getRuntime().addShutdownHook(new Thread(this::dumpTrace));
+        }
+
+        String saveFile = System.getProperty("chip8.saveFile");
+        if (saveFile != null) {
+            saveSlot = Integer.getInteger("chip8.slot", 0);
+            checkpointInterval = Integer.getInteger("chip8.checkpoint", 0);
+            try {
+                saves = SaveStateFile.open(Paths.get(saveFile), chip8.getRomHash(), Math.max(10, saveSlot + 1));
+                if (recording != null || replay != null)
+                    System.out.println("Not resuming from save slot " + saveSlot + ": movies start from power-on");
+                else if (saves.load(saveSlot, chip8))
+                    System.out.println("Resumed from save slot " + saveSlot);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Save states disabled: " + e.getMessage());
+                saves = null;
+            }
+        }
+
+        int runAheadFrames = Integer.getInteger("chip8.runahead", 0);
+        if (runAheadFrames > 0)
+            runAhead = new RunAhead(runAheadFrames);
+
+        int rewindSeconds = Integer.getInteger("chip8.rewind", 0);
+        if (rewindSeconds > 0)
+            rewind = new RewindBuffer(rewindSeconds * 60, rewindSeconds * 60 * 1024);
+
+        turbo = Integer.getInteger("chip8.turbo", 0) > 0;
+        renderInterval = Math.max(1, Integer.getInteger("chip8.turbo", 1));
+        pacer = new FramePacer(60, Integer.getInteger("chip8.catchup", 5));
+
+        metricsIntervalFrames = Integer.getInteger("chip8.metricsInterval", 0) * 60L;
+        if (Boolean.getBoolean("chip8.metrics") || metricsIntervalFrames > 0) {
+            metrics = new EmulatorMetrics(pacer);
+            if (Boolean.getBoolean("chip8.metrics")) {
+                try {
+                    metrics.register();
+                } catch (JMException e) {
+                    System.err.println("Metrics not registered with JMX: " + e.getMessage());
+                }
+            }
+            if (Boolean.getBoolean("chip8.opcodeCounts"))
+                chip8.setOpcodeCounts(metrics.getOpcodeCountArray());
+        }
+
+        // Headless mode never creates the window and skips rendering entirely
+        if (!Boolean.getBoolean("chip8.headless")) {
+            chipFrame = new ChipFrame(Integer.getInteger("chip8.scale", 10),
+                    Color.decode(System.getProperty("chip8.foreground", "#FFFFFF")),
+                    Color.decode(System.getProperty("chip8.background", "#000000")));
+            if (metrics != null)
+                chipFrame.setPaintTimes(metrics.getPaintTimes());
+            String keyMap = System.getProperty("chip8.keymap");
+            if (keyMap != null) {
+                try {
+                    chipFrame.setKeyMap(KeyMap.parse(keyMap));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Key map ignored: " + e.getMessage());
+                }
+            }
+            chipFrame.setTrace(trace);
+            chipFrame.setRewind(rewind);
+            keyEvents = chipFrame.getKeyEvents();
+            if (metrics != null)
+                metrics.setKeyEvents(keyEvents);
+        }
     }
 
     public void run () {
-        // 60 updates per second
+        try {
+            emulate();
+        } catch (ChipFault e) {
+            // the instructions leading up to the fault; the shutdown hook still writes the trace file as well
+            System.err.println(e.getMessage());
+            if (trace != null) {
+                try {
+                    trace.dump(Paths.get("chip8-fault.trace"));
+                    System.err.println("Instruction trace written to chip8-fault.trace");
+                } catch (IOException io) {
+                    io.printStackTrace();
+                }
+            }
+            System.exit(0);
+        }
+    }
+
+    private void emulate() {
+        // 60 frames per second, each running a batch of instructions and one timer tick
+        boolean onTime = true;
+        pacer.start();
         while (true) {
-            chip8.run();
-            if(chip8.needsRedraw()) {
-                chipFrame.repaint();
-                chip8.removeDrawFlag();
+            long frameStart = metrics != null ? System.nanoTime() : 0;
+            long skippedBefore = chip8.getIdleInstructions() + chip8.getWaitingInstructions();
+            boolean redrawn = false;
+            if (replay != null && !replay.replay(chip8)) {
+                System.out.println("Replay finished at frame " + chip8.getFrameCount());
+                replay = null;
             }
-            try {
-                Thread.sleep(16);
-            } catch (InterruptedException e) {
-                System.out.println("InterruptedException from Thread.sleep()");
+            if (keyEvents != null) {
+                heldKeys = keyEvents.apply(heldKeys);
+                if (replay == null)
+                    chip8.setKeyMask(heldKeys);
+            }
+            if (recording != null)
+                recording.record(chip8.getFrameCount(), chip8.getKeyMask());
+            if (runAhead != null) {
+                long[] ahead = runAhead.runFrame(chip8);
+                redrawn = chipFrame != null && onTime && chip8.getFrameCount() % renderInterval == 0;
+                if (redrawn)
+                    chipFrame.present(ahead, 0xFFFFFFFF);
+            } else {
+                chip8.runFrame();
+                if (chipFrame != null && onTime && chip8.getFrameCount() % renderInterval == 0 && chip8.needsRedraw()) {
+                    chipFrame.present(chip8.getDisplayRows(), chip8.takeDirtyRows());
+                    chip8.removeDrawFlag();
+                    redrawn = true;
+                }
+            }
+            if (rewind != null) {
+                rewind.rewindIfRequested(chip8);
+                rewind.capture(chip8);
+            }
+            if (video != null)
+                video.offer(chip8.getFrameCount(), chip8.getDisplayRows());
+            if (saves != null && checkpointInterval > 0 && chip8.getFrameCount() % checkpointInterval == 0)
+                saves.save(saveSlot, chip8);
+            if (trace != null) {
+                try {
+                    trace.dumpIfRequested(traceFile);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
+            if (metrics != null) {
+                if (keyEvents != null && keyEvents.getApplied() > 0 && replay == null)
+                    metrics.inputApplied(System.nanoTime() - keyEvents.getOldestApplied());
+                // only the instructions actually run, not those skipped in idle loops or blocked in FX0A
+                long skipped = chip8.getIdleInstructions() + chip8.getWaitingInstructions() - skippedBefore;
+                int executed = chip8.getCyclesPerFrame() - (int) skipped;
+                metrics.frameDone(System.nanoTime() - frameStart, executed, redrawn);
+                if (metricsIntervalFrames > 0 && metrics.getFrames() % metricsIntervalFrames == 0)
+                    System.out.print(metrics.dump());
+            }
+            if (keyEvents != null && replay == null && chip8.isWaitingForKey() && keyEvents.isEmpty())
+                parkUntilKey();
+            else if (!turbo)
+                onTime = pacer.awaitNextFrame();
+        }
+
+    }
 
+    // Parks the thread while the program is blocked in FX0A, instead of pacing frames in which nothing can happen.
+    // A key event or hotkey wakes it; the frames that passed meanwhile are then let pass in one go, which ticks
+    // the timers as if they had run (see Chip.skipWaitingFrames()). The rewind history does not hold them.
+    private void parkUntilKey() {
+        long parkedAt = System.nanoTime();
+        keyEvents.await();
+        long frames = (System.nanoTime() - parkedAt) / FRAME_NANOS;
+        if (frames > 0)
+            chip8.skipWaitingFrames(frames);
+        pacer.start();
+    }
+
+    private void writeRecording() {
+        try {
+            recording.write(recordFile);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+    }
 
+    private void closeVideo() {
+        try {
+            System.out.println(video.close());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
+    private void dumpTrace() {
+        try {
+            trace.dump(traceFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // The ROM to run is a file path, or the name or hash of a ROM in the library (see openLibrary())
     public static void main(String[] args) {
-        Main main = new Main();
+        String name = args.length > 0 ? args[0] : "PONG2";
+        byte[] rom;
+        try {
+            rom = findRom(name);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Cannot load " + name + ": " + e.getMessage());
+            return;
+        }
+        if (rom == null) {
+            System.err.println("No ROM named " + name + " in the library");
+            return;
+        }
+
+        Main main = new Main(rom);
         main.start();
     }
-}
\ No newline at end of file
+
+    static byte[] findRom(String name) throws IOException {
+        Path file = Paths.get(name);
+        if (Files.isRegularFile(file))
+            return RomLibrary.readRom(file);
+
+        RomLibrary library = openLibrary();
+        RomLibrary.Entry entry = library.find(name);
+        return entry != null ? library.read(entry) : null;
+    }
+
+    // The library ROMs with the given names or SHA-1 prefixes (see RomLibrary.find()), or all of them by name if
+    // none are given. Fails on a name that matches nothing.
+    static List<RomLibrary.Entry> findRoms(List<String> names) throws IOException {
+        RomLibrary library = openLibrary();
+        List<RomLibrary.Entry> roms = new ArrayList<>();
+        for (String name : names) {
+            RomLibrary.Entry entry = library.find(name);
+            if (entry == null)
+                throw new IllegalArgumentException("No ROM named " + name + " in the library");
+            roms.add(entry);
+        }
+        if (names.isEmpty()) {
+            roms.addAll(library.getRoms());
+            roms.sort(Comparator.comparing(RomLibrary.Entry::getName));
+        }
+        return roms;
+    }
+
+    // The ROM library over games/ and the directories in -Dchip8.library (separated like a class path), indexed
+    // in -Dchip8.libraryIndex (by default in the user's cache directory, not the working tree) so that only new or
+    // changed files are read on start
+    public static RomLibrary openLibrary() throws IOException {
+        String indexFile = System.getProperty("chip8.libraryIndex");
+        Path index = indexFile != null ? Paths.get(indexFile)
+                : Paths.get(System.getProperty("user.home"), ".cache", "chip8", "library.idx");
+        if (index.getParent() != null)
+            Files.createDirectories(index.getParent());
+        RomLibrary library = new RomLibrary(index);
+        library.addDirectory(Paths.get("games"));
+        String directories = System.getProperty("chip8.library", "");
+        for (String directory : directories.split(File.pathSeparator)) {
+            if (!directory.isEmpty())
+                library.addDirectory(Paths.get(directory));
+        }
+        library.scan();
+        return library;
+    }
+}
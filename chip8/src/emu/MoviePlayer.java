@@ -0,0 +1,53 @@
+package emu;
+
+import chip.Chip;
+import chip.ChipFault;
+import chip.InputMovie;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+// Replays an input movie headless and as fast as the CPU allows, then prints the frame rate reached and a hash
+// of the final display, which is the same on every run of the same movie.
+// The ROM is looked up in the library by the movie's ROM hash unless a path or name is given.
+// Usage: MoviePlayer <movie> [rom]
+public class MoviePlayer {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: MoviePlayer <movie> [rom]");
+            return;
+        }
+
+        InputMovie movie = InputMovie.read(Paths.get(args[0]));
+        String name = args.length > 1 ? args[1] : String.format("%040x", new BigInteger(1, movie.getRomHash()));
+        byte[] rom = Main.findRom(name);
+        if (rom == null) {
+            System.err.println("ROM " + name + " not found in the library");
+            return;
+        }
+
+        Chip chip = new Chip();
+        chip.init();
+        chip.loadProgram(rom);
+        movie.start(chip);
+
+        long start = System.nanoTime();
+        String end = "end of movie";
+        try {
+            while (movie.replay(chip))
+                chip.runFrame();
+        } catch (ChipFault e) {
+            end = e.getMessage();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("%d of %d frames, %d input events, %s", chip.getFrameCount(), movie.getLength(),
+                movie.getEventCount(), end));
+        System.out.println(String.format("%.0f frames/s (x%.0f real time)", chip.getFrameCount() / (elapsed / 1e9),
+                chip.getFrameCount() / (elapsed / 1e9) / 60));
+        System.out.println(String.format("display %08x", Arrays.hashCode(chip.getDisplayRows())));
+    }
+}
@@ -0,0 +1,285 @@
+package emu;
+
+import chip.Chip;
+import chip.RomLibrary;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Checks every ROM in the library (see Main.openLibrary()) for changes in behaviour and speed in one pass. Each ROM
+// runs headless with a fixed seed and scripted key taps, and the display is hashed every second of emulated time;
+// the hashes must match the golden file. Once all ROMs have been checked, and the JIT has seen them all, each is
+// run again and timed in thread CPU time, so that the ROMs can run in parallel on all cores. The runs alternate
+// with a fixed calibration loop on the same thread, and the speed is the best instructions actually executed per
+// second over the best calibration rate, so it does not depend on how fast or how busy the machine is. Single
+// ROMs still vary a lot from run to run with what the JIT makes of them, so their speeds are only reported; the
+// check fails if their geometric mean falls more than the given percentage (default 25) below that of the golden
+// file. "update" rewrites the golden file instead. Exits with status 1 if any ROM or the speed failed.
+// Usage: RegressionRunner check|update <golden file> [max slowdown %]
+public class RegressionRunner {
+
+    private static final int FRAMES = 1800;
+    private static final int CHECKPOINT_INTERVAL = 60;
+    private static final int CYCLES_PER_FRAME = 10; // 600 Hz, the default speed of Main
+    private static final int TIMING_RUNS = 5;
+    private static final long MIN_RUN_NANOS = 50_000_000L;
+    private static final int CALIBRATION_ROUNDS = 1 << 20;
+    private static final String FIRST_ROM = "test_opcode.ch8";
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2 || !(args[0].equals("check") || args[0].equals("update"))) {
+            System.err.println("Usage: RegressionRunner check|update <golden file> [max slowdown %]");
+            return;
+        }
+
+        boolean update = args[0].equals("update");
+        Path goldenFile = Paths.get(args[1]);
+        double maxSlowdown = args.length > 2 ? Double.parseDouble(args[2]) / 100 : 0.25;
+        Map<String, Result> golden = update ? new HashMap<>() : readGolden(goldenFile);
+
+        RomLibrary library = Main.openLibrary();
+        List<RomLibrary.Entry> roms = new ArrayList<>(library.getRoms());
+        roms.sort(Comparator.comparing((RomLibrary.Entry entry) -> !entry.getName().equals(FIRST_ROM))
+                .thenComparing(RomLibrary.Entry::getName));
+
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<Future<Result>> checked = new ArrayList<>();
+        for (RomLibrary.Entry rom : roms)
+            checked.add(pool.submit(() -> check(rom.getName(), rom.getHashHex(), library.read(rom))));
+        for (Future<Result> result : checked) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                // reported with the timing below
+            }
+        }
+        List<Future<Result>> running = new ArrayList<>();
+        for (Future<Result> result : checked)
+            running.add(pool.submit(() -> time(result.get())));
+
+        System.out.println(String.format("%-16s %10s %10s  %s", "rom", "speed", "golden", "result"));
+        List<Result> results = new ArrayList<>();
+        int failures = 0;
+        double logSpeed = 0;
+        int timed = 0;
+        for (int i = 0; i < roms.size(); i++) {
+            Result result;
+            try {
+                result = running.get(i).get();
+            } catch (ExecutionException e) {
+                System.out.println(String.format("%-16s %10s %10s  %s", roms.get(i).getName(), "", "",
+                        "FAIL cannot run: " + e.getCause()));
+                failures++;
+                continue;
+            }
+            results.add(result);
+
+            Result expected = golden.get(result.name);
+            String verdict = update ? "recorded" : compare(result, expected);
+            if (verdict.startsWith("FAIL"))
+                failures++;
+            if (expected != null && expected.speed > 0 && result.speed > 0) {
+                logSpeed += Math.log(result.speed / expected.speed);
+                timed++;
+            }
+            System.out.println(String.format(Locale.ROOT, "%-16s %10.4f %10s  %s", result.name, result.speed,
+                    expected == null ? "" : String.format(Locale.ROOT, "%.4f", expected.speed), verdict));
+        }
+        pool.shutdown();
+
+        if (update) {
+            writeGolden(goldenFile, results);
+            System.out.println("Wrote " + results.size() + " ROMs to " + goldenFile);
+        } else {
+            boolean slow = false;
+            if (timed > 0) {
+                double speed = Math.exp(logSpeed / timed);
+                slow = 1 - speed > maxSlowdown;
+                System.out.println(String.format(Locale.ROOT, "Speed %.2fx the golden file (geometric mean)%s", speed,
+                        slow ? String.format(Locale.ROOT, ", FAIL more than %.0f%% slower", maxSlowdown * 100) : ""));
+            }
+            System.out.println(failures == 0 ? "All " + results.size() + " ROMs passed" : failures + " of " + roms.size() + " ROMs failed");
+            if (failures > 0 || slow)
+                System.exit(1);
+        }
+    }
+
+    private static Result check(String name, String hash, byte[] rom) {
+        int[] keys = script();
+        Result result = new Result(name, hash);
+        result.rom = rom;
+
+        Chip chip = start(rom);
+        try {
+            for (int f = 1; f <= FRAMES; f++) {
+                chip.setKeyMask(keys[f - 1]);
+                chip.runFrame();
+                if (f % CHECKPOINT_INTERVAL == 0)
+                    result.checkpoints.add(String.format("%08x", Arrays.hashCode(chip.getDisplayRows())));
+            }
+        } catch (RuntimeException e) { // ChipFault, or the ROM running off memory or the stack
+            result.checkpoints.add("fault@" + chip.getFrameCount());
+        }
+        return result;
+    }
+
+    // Runs the script, up to the fault if there is one, until enough CPU time has passed to rate it, then the
+    // calibration loop for about as long; the speed is the ratio of the best rates of a few such runs
+    private static Result time(Result result) {
+        int[] keys = script();
+        double instructionsPerSecond = 0;
+        double calibrationsPerSecond = 0;
+        for (int run = 0; run < TIMING_RUNS; run++) {
+            long instructions = 0;
+            long nanos = 0;
+            while (nanos < MIN_RUN_NANOS) {
+                Chip chip = start(result.rom);
+                long started = cpuNanos();
+                try {
+                    for (int f = 0; f < FRAMES; f++) {
+                        chip.setKeyMask(keys[f]);
+                        chip.runFrame();
+                    }
+                } catch (RuntimeException e) {
+                    // recorded by check()
+                }
+                nanos += cpuNanos() - started;
+                // idle-loop iterations skipped, and cycles given up blocked in FX0A, were not executed
+                instructions += chip.getFrameCount() * CYCLES_PER_FRAME - chip.getIdleInstructions()
+                        - chip.getWaitingInstructions();
+            }
+            instructionsPerSecond = Math.max(instructionsPerSecond, instructions / (nanos / 1e9));
+
+            long calibrations = 0;
+            nanos = 0;
+            while (nanos < MIN_RUN_NANOS) {
+                long started = cpuNanos();
+                result.calibrationSum += calibrate();
+                nanos += cpuNanos() - started;
+                calibrations++;
+            }
+            calibrationsPerSecond = Math.max(calibrationsPerSecond, calibrations / (nanos / 1e9));
+        }
+        result.speed = instructionsPerSecond / (calibrationsPerSecond * CALIBRATION_ROUNDS);
+        return result;
+    }
+
+    // Fixed work that does not touch the emulator, a mix of arithmetic, branches and table lookups like an
+    // interpreter's; it returns a sum so the JIT cannot drop it
+    private static long calibrate() {
+        int[] table = new int[4096];
+        int x = 1;
+        long sum = 0;
+        for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            int slot = x & 0xFFF;
+            if ((x & 0x1000) != 0)
+                table[slot] += x;
+            else
+                sum += table[slot ^ 0x800];
+        }
+        return sum;
+    }
+
+    private static String compare(Result actual, Result expected) {
+        if (expected == null)
+            return "FAIL not in the golden file";
+        if (!actual.hash.equals(expected.hash))
+            return "FAIL the ROM file changed";
+        for (int i = 0; i < Math.max(actual.checkpoints.size(), expected.checkpoints.size()); i++) {
+            String got = i < actual.checkpoints.size() ? actual.checkpoints.get(i) : "nothing";
+            String wanted = i < expected.checkpoints.size() ? expected.checkpoints.get(i) : "nothing";
+            if (!got.equals(wanted))
+                return "FAIL checkpoint " + (i + 1) * CHECKPOINT_INTERVAL + ": " + got + ", expected " + wanted;
+        }
+        return "ok";
+    }
+
+    // A short tap of a random key about every two seconds
+    private static int[] script() {
+        Random random = new Random(1);
+        int[] keys = new int[FRAMES];
+        for (int f = 0; f + 6 < FRAMES; f += 60 + random.nextInt(120)) {
+            int key = 1 << random.nextInt(16);
+            Arrays.fill(keys, f, f + 6, key);
+        }
+        return keys;
+    }
+
+    private static Chip start(byte[] rom) {
+        Chip chip = new Chip();
+        chip.init();
+        chip.loadProgram(rom);
+        chip.setSeed(0);
+        chip.setCyclesPerFrame(CYCLES_PER_FRAME);
+        return chip;
+    }
+
+    private static long cpuNanos() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    // One line per ROM: name, SHA-1, speed, then the checkpoints; # starts a comment
+    private static Map<String, Result> readGolden(Path file) throws IOException {
+        Map<String, Result> golden = new HashMap<>();
+        for (String line : Files.readAllLines(file)) {
+            if (line.isBlank() || line.startsWith("#"))
+                continue;
+            String[] fields = line.trim().split("\\s+");
+            Result result = new Result(fields[0], fields[1]);
+            result.speed = Double.parseDouble(fields[2]);
+            result.checkpoints.addAll(Arrays.asList(fields).subList(3, fields.length));
+            golden.put(result.name, result);
+        }
+        return golden;
+    }
+
+    private static void writeGolden(Path file, List<Result> results) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            out.write("# Written by RegressionRunner update: rom, SHA-1, speed relative to the calibration loop, then a\n");
+            out.write("# hash of the display every " + CHECKPOINT_INTERVAL + " frames, ending in fault@<frame> if the ROM faulted\n");
+            for (Result result : results) {
+                out.write(result.name + " " + result.hash + " " + String.format(Locale.ROOT, "%.4f", result.speed));
+                for (String checkpoint : result.checkpoints)
+                    out.write(" " + checkpoint);
+                out.write("\n");
+            }
+        }
+    }
+
+    private static final class Result {
+
+        final String name;
+        final String hash;
+        final List<String> checkpoints = new ArrayList<>();
+        double speed;
+        long calibrationSum;
+        byte[] rom;
+
+        Result(String name, String hash) {
+            this.name = name;
+            this.hash = hash;
+        }
+    }
+}
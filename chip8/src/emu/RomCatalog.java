@@ -0,0 +1,21 @@
+package emu;
+
+import chip.RomLibrary;
+
+import java.io.IOException;
+
+// Lists the ROM library (games/ plus -Dchip8.library) with hashes, and how long the scan took.
+// Any ROM listed can be started with Main by its name or a hash prefix.
+public class RomCatalog {
+
+    public static void main(String[] args) throws IOException {
+        long start = System.nanoTime();
+        RomLibrary library = Main.openLibrary();
+        long elapsed = System.nanoTime() - start;
+
+        for (RomLibrary.Entry entry : library.getRoms())
+            System.out.println(String.format("%s  %5d  %s", entry.getHashHex().substring(0, 12), entry.getSize(), entry.getPath()));
+        System.out.println(String.format("%d ROMs, %d files read, scanned in %.1f ms",
+                library.getRoms().size(), library.getFilesRead(), elapsed / 1e6));
+    }
+}
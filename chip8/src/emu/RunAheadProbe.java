@@ -0,0 +1,97 @@
+package emu;
+
+import chip.Chip;
+import chip.ChipSnapshot;
+import chip.RomLibrary;
+import chip.RunAhead;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+// Measures per ROM how many frames pass between pressing a key and the first visible reaction, without and with
+// run-ahead. ROMs are looked up in the library (see Main.openLibrary()); without any, all of its ROMs are probed.
+// Usage: RunAheadProbe <run-ahead frames> [rom]...
+public class RunAheadProbe {
+
+    private static final int WARM_UP_FRAMES = 120;
+    private static final int WINDOW = 30;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: RunAheadProbe <run-ahead frames> [rom]...");
+            return;
+        }
+
+        int frames = Integer.parseInt(args[0]);
+        List<RomLibrary.Entry> roms;
+        try {
+            roms = Main.findRoms(Arrays.asList(args).subList(1, args.length));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        System.out.println(String.format("%-16s %8s %8s %8s", "rom", "plain", "ahead", "removed"));
+        for (RomLibrary.Entry rom : roms)
+            probe(rom, frames);
+    }
+
+    private static void probe(RomLibrary.Entry rom, int frames) {
+        try {
+            Chip chip = new Chip();
+            chip.init();
+            chip.loadProgram(RomLibrary.readRom(rom.getPath()));
+            chip.setSeed(0);
+            for (int i = 0; i < WARM_UP_FRAMES; i++)
+                chip.runFrame();
+
+            ChipSnapshot start = new ChipSnapshot();
+            chip.snapshot(start);
+
+            // A ROM whose idle runs already differ cannot be measured this way
+            long[][] idle = play(chip, start, 0, new RunAhead(0));
+            if (firstDifference(idle, play(chip, start, 0, new RunAhead(0))) >= 0) {
+                System.out.println(String.format("%-16s %8s", rom.getName(), "nondeterministic"));
+                return;
+            }
+
+            int plain = latency(chip, start, idle, new RunAhead(0));
+            int ahead = latency(chip, start, idle, new RunAhead(frames));
+            if (plain < 0) {
+                System.out.println(String.format("%-16s %8s", rom.getName(), "no reaction"));
+                return;
+            }
+            System.out.println(String.format("%-16s %8d %8d %8d", rom.getName(), plain, ahead, plain - ahead));
+        } catch (IOException | RuntimeException e) {
+            System.out.println(String.format("%-16s %8s", rom.getName(), "fault: " + e));
+        }
+    }
+
+    // Smallest number of frames until any single key changes what is shown compared to not pressing it
+    private static int latency(Chip chip, ChipSnapshot start, long[][] idle, RunAhead runAhead) {
+        int best = -1;
+        for (int key = 0; key < 16; key++) {
+            int reaction = firstDifference(idle, play(chip, start, 1 << key, runAhead));
+            if (reaction >= 0 && (best < 0 || reaction < best))
+                best = reaction;
+        }
+        return best;
+    }
+
+    private static long[][] play(Chip chip, ChipSnapshot start, int keyMask, RunAhead runAhead) {
+        chip.restore(start);
+        chip.setKeyMask(keyMask);
+        long[][] shown = new long[WINDOW][];
+        for (int f = 0; f < WINDOW; f++)
+            shown[f] = runAhead.runFrame(chip).clone();
+        return shown;
+    }
+
+    private static int firstDifference(long[][] a, long[][] b) {
+        for (int f = 0; f < a.length; f++) {
+            if (!Arrays.equals(a[f], b[f]))
+                return f;
+        }
+        return -1;
+    }
+}
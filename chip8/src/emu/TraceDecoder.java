@@ -0,0 +1,82 @@
+package emu;
+
+import chip.TraceBuffer;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+// Prints a trace dump written by TraceBuffer.dump(), one disassembled instruction per line
+public class TraceDecoder {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: TraceDecoder <trace file>");
+            return;
+        }
+
+        int[][] rows = TraceBuffer.read(Paths.get(args[0]));
+        StringBuilder out = new StringBuilder();
+        for (int[] row : rows) {
+            out.append(String.format("%03X  %04X  I=%03X  V#%08X  ", row[0], row[1], row[2], row[3]));
+            out.append(disassemble(row[1])).append('\n');
+        }
+        System.out.print(out);
+    }
+
+    public static String disassemble(int opcode) {
+        int x = (opcode & 0x0F00) >> 8;
+        int y = (opcode & 0x00F0) >> 4;
+        int n = opcode & 0x000F;
+        int nn = opcode & 0x00FF;
+        int nnn = opcode & 0x0FFF;
+
+        switch (opcode & 0xF000) {
+            case 0x0000:
+                if (nn == 0xE0) return "CLS";
+                if (nn == 0xEE) return "RET";
+                break;
+            case 0x1000: return String.format("JP %03X", nnn);
+            case 0x2000: return String.format("CALL %03X", nnn);
+            case 0x3000: return String.format("SE V%X, %02X", x, nn);
+            case 0x4000: return String.format("SNE V%X, %02X", x, nn);
+            case 0x5000: return String.format("SE V%X, V%X", x, y);
+            case 0x6000: return String.format("LD V%X, %02X", x, nn);
+            case 0x7000: return String.format("ADD V%X, %02X", x, nn);
+            case 0x8000:
+                switch (n) {
+                    case 0x0: return String.format("LD V%X, V%X", x, y);
+                    case 0x1: return String.format("OR V%X, V%X", x, y);
+                    case 0x2: return String.format("AND V%X, V%X", x, y);
+                    case 0x3: return String.format("XOR V%X, V%X", x, y);
+                    case 0x4: return String.format("ADD V%X, V%X", x, y);
+                    case 0x5: return String.format("SUB V%X, V%X", x, y);
+                    case 0x6: return String.format("SHR V%X", x);
+                    case 0x7: return String.format("SUBN V%X, V%X", x, y);
+                    case 0xE: return String.format("SHL V%X", x);
+                }
+                break;
+            case 0xA000: return String.format("LD I, %03X", nnn);
+            case 0xB000: return String.format("JP V0, %03X", nnn);
+            case 0xC000: return String.format("RND V%X, %02X", x, nn);
+            case 0xD000: return String.format("DRW V%X, V%X, %X", x, y, n);
+            case 0xE000:
+                if (nn == 0x9E) return String.format("SKP V%X", x);
+                if (nn == 0xA1) return String.format("SKNP V%X", x);
+                break;
+            case 0xF000:
+                switch (nn) {
+                    case 0x07: return String.format("LD V%X, DT", x);
+                    case 0x0A: return String.format("LD V%X, K", x);
+                    case 0x15: return String.format("LD DT, V%X", x);
+                    case 0x18: return String.format("LD ST, V%X", x);
+                    case 0x1E: return String.format("ADD I, V%X", x);
+                    case 0x29: return String.format("LD F, V%X", x);
+                    case 0x33: return String.format("LD B, V%X", x);
+                    case 0x55: return String.format("LD [I], V%X", x);
+                    case 0x65: return String.format("LD V%X, [I]", x);
+                }
+                break;
+        }
+        return "???";
+    }
+}
@@ -0,0 +1,163 @@
+package emu;
+
+import chip.DeltaCodec;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// Converts a recording of VideoRecorder into an animated GIF (if the output ends in .gif) or into a directory of
+// PNG images, one per recorded frame and named after its frame number, and prints the recording's size per minute.
+// Usage: VideoExport <video> <output.gif | directory> [scale]
+public class VideoExport {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: VideoExport <video> <output.gif | directory> [scale]");
+            return;
+        }
+
+        Path video = Paths.get(args[0]);
+        Path output = Paths.get(args[1]);
+        int scale = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        boolean gif = output.getFileName().toString().toLowerCase().endsWith(".gif");
+        if (!gif)
+            Files.createDirectories(output);
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(video)));
+             GifSequence sequence = gif ? new GifSequence(output) : null) {
+            if (in.readInt() != VideoRecorder.MAGIC)
+                throw new IOException(video + " is not a recording");
+            if (in.readInt() != VideoRecorder.VERSION)
+                throw new IOException(video + " was written by an incompatible version");
+
+            byte[] display = new byte[VideoRecorder.DISPLAY_BYTES];
+            byte[] delta = new byte[DeltaCodec.maxEncodedSize(VideoRecorder.DISPLAY_BYTES)];
+            BufferedImage image = new BufferedImage(64 * scale, 32 * scale, BufferedImage.TYPE_BYTE_BINARY);
+            long frame = 0;
+            long firstFrame = -1;
+            long records = 0;
+            while (true) {
+                long elapsed;
+                try {
+                    elapsed = readVarLong(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                int length = (int) readVarLong(in);
+                in.readFully(delta, 0, length);
+
+                // the previous picture lasted until this one replaces it
+                if (sequence != null && records > 0)
+                    sequence.write(image, frame, frame + elapsed);
+                frame += elapsed;
+                if (firstFrame < 0)
+                    firstFrame = frame;
+                DeltaCodec.apply(delta, 0, display, VideoRecorder.DISPLAY_BYTES);
+                draw(display, image, scale);
+                if (sequence == null)
+                    ImageIO.write(image, "png", output.resolve(String.format("frame_%08d.png", frame)).toFile());
+                records++;
+            }
+            if (sequence != null && records > 0)
+                sequence.write(image, frame, frame + 60); // hold the last picture for a second
+
+            double minutes = records == 0 ? 0 : (frame - firstFrame + 1) / 3600.0;
+            System.out.println(String.format("%d frames over %.1f min, %d bytes (%.1f KB per minute), written to %s",
+                    records, minutes, Files.size(video), minutes == 0 ? 0.0 : Files.size(video) / 1024.0 / minutes, output));
+        }
+    }
+
+    private static void draw(byte[] display, BufferedImage image, int scale) {
+        WritableRaster raster = image.getRaster();
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 64; x++) {
+                int pixel = (display[y * 8 + (x >> 3)] >> (7 - (x & 7))) & 1;
+                for (int dy = 0; dy < scale; dy++) {
+                    for (int dx = 0; dx < scale; dx++)
+                        raster.setSample(x * scale + dx, y * scale + dy, 0, pixel);
+                }
+            }
+        }
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+
+    // Animated GIF written one picture at a time. GIF delays are in hundredths of a second, so each picture is
+    // shown until the frame where the next one starts, rounded on the absolute time to keep the total exact.
+    private static final class GifSequence implements AutoCloseable {
+
+        private final ImageOutputStream stream;
+        private final ImageWriter writer;
+        private long origin = -1; // frame the first picture starts at
+        private long shownAt;     // centiseconds since origin up to which pictures have been written
+
+        GifSequence(Path file) throws IOException {
+            Files.deleteIfExists(file);
+            stream = ImageIO.createImageOutputStream(file.toFile());
+            writer = ImageIO.getImageWritersByFormatName("gif").next();
+            writer.setOutput(stream);
+            writer.prepareWriteSequence(null);
+        }
+
+        // Writes the picture shown from one frame until another
+        void write(BufferedImage image, long fromFrame, long untilFrame) throws IOException {
+            boolean first = origin < 0;
+            if (first)
+                origin = fromFrame;
+            long until = Math.round((untilFrame - origin) * 100 / 60.0);
+            int delay = (int) Math.min(0xFFFF, Math.max(1, until - shownAt)); // longer pauses are cut short
+
+            IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), null);
+            String format = metadata.getNativeMetadataFormatName();
+            IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+            IIOMetadataNode control = new IIOMetadataNode("GraphicControlExtension");
+            control.setAttribute("disposalMethod", "none");
+            control.setAttribute("userInputFlag", "FALSE");
+            control.setAttribute("transparentColorFlag", "FALSE");
+            control.setAttribute("delayTime", Integer.toString(delay));
+            control.setAttribute("transparentColorIndex", "0");
+            root.appendChild(control);
+            if (first) { // first picture: loop forever
+                IIOMetadataNode applications = new IIOMetadataNode("ApplicationExtensions");
+                IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+                loop.setAttribute("applicationID", "NETSCAPE");
+                loop.setAttribute("authenticationCode", "2.0");
+                loop.setUserObject(new byte[] { 1, 0, 0 });
+                applications.appendChild(loop);
+                root.appendChild(applications);
+            }
+            metadata.setFromTree(format, root);
+            writer.writeToSequence(new IIOImage(image, null, metadata), null);
+            shownAt = Math.max(shownAt + delay, until);
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.endWriteSequence();
+            writer.dispose();
+            stream.close();
+        }
+    }
+}
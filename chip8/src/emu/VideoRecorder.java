@@ -0,0 +1,192 @@
+package emu;
+
+import chip.DeltaCodec;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the display to a file without slowing the emulation down. The emulation thread copies each frame
+ * that differs from the previous one into a preallocated single-producer/single-consumer ring (offer()); an
+ * encoder thread takes frames from the ring, delta-encodes them and does all the file I/O. If the encoder falls
+ * behind and the ring is full, frames are dropped and counted rather than making the emulation wait; the next
+ * frame recorded is encoded against the last one written, so a drop only holds the previous picture longer.
+ *
+ * File layout (big endian): magic "C8VD", version, then per recorded frame the frames since the previous record
+ * (the absolute frame number for the first one) and the length of its delta as unsigned varints, and a
+ * DeltaCodec delta of the 256 display bytes (32 rows of 8 bytes, most significant pixel first) against the
+ * previous record, or against a blank display for the first. See VideoExport for reading it back.
+ */
+public class VideoRecorder {
+
+    static final int MAGIC = 0x43385644; // "C8VD"
+    static final int VERSION = 1;
+    static final int DISPLAY_BYTES = 32 * 8;
+
+    private static final long IDLE_POLL_NANOS = 4_000_000L;
+
+    private final Path file;
+    private final DataOutputStream out;
+
+    // The ring: frame numbers and display rows of each slot, filled by offer() and drained by the encoder
+    private final long[] frameNumbers;
+    private final long[][] frames;
+    private final int indexMask;
+    private final AtomicLong head = new AtomicLong(); // next frame to encode, written by the encoder
+    private final AtomicLong tail = new AtomicLong(); // next free slot, written by the emulation thread
+
+    // Emulation thread: the last frame offered, so unchanged frames are not queued at all. While behind, that
+    // frame was dropped and is retried until it fits, but counted as dropped only once.
+    private final long[] lastOffered = new long[32];
+    private boolean offeredAny;
+    private boolean behind;
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Encoder thread
+    private final byte[] current = new byte[DISPLAY_BYTES];
+    private final byte[] previous = new byte[DISPLAY_BYTES];
+    private final byte[] delta = new byte[DeltaCodec.maxEncodedSize(DISPLAY_BYTES)];
+    private long previousFrame;
+    private long firstFrame = -1;
+    private long lastFrame;
+    private long recorded;
+    private long bytesWritten;
+
+    private final Thread encoder;
+    private volatile boolean closing;
+    private volatile IOException failure;
+
+    // Ring capacity in frames, rounded up to a power of two; 256 holds over four seconds of changing frames
+    public VideoRecorder(Path file, int capacity) throws IOException {
+        this.file = file;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        frameNumbers = new long[size];
+        frames = new long[size][32];
+        indexMask = size - 1;
+
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        bytesWritten = 8;
+
+        encoder = new Thread(this::encode, "chip8-video");
+        encoder.setDaemon(true);
+        encoder.start();
+    }
+
+    // Emulation thread: queues the frame if it differs from the last one offered. Never blocks; returns false if
+    // the frame had to be dropped because the encoder is behind.
+    public boolean offer(long frameNumber, long[] rows) {
+        boolean unchanged = offeredAny && equalRows(rows, lastOffered);
+        if (unchanged && !behind)
+            return true;
+
+        long t = tail.get();
+        if (t - head.get() == frames.length || failure != null) {
+            if (!unchanged)
+                dropped.lazySet(dropped.get() + 1);
+            System.arraycopy(rows, 0, lastOffered, 0, 32);
+            offeredAny = true;
+            behind = true;
+            return false;
+        }
+        int slot = (int) t & indexMask;
+        frameNumbers[slot] = frameNumber;
+        System.arraycopy(rows, 0, frames[slot], 0, 32);
+        tail.lazySet(t + 1);
+
+        System.arraycopy(rows, 0, lastOffered, 0, 32);
+        offeredAny = true;
+        behind = false;
+        return true;
+    }
+
+    // Frames dropped because the ring was full
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    // Lets the encoder write everything queued, closes the file and returns a summary with the size per minute
+    public String close() throws IOException {
+        closing = true;
+        LockSupport.unpark(encoder);
+        try {
+            encoder.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null)
+            throw failure;
+
+        double minutes = (lastFrame - Math.max(0, firstFrame) + 1) / 3600.0;
+        return String.format("%s: %d frames recorded over %.1f min, %d dropped, %d bytes (%.1f KB per minute)",
+                file, recorded, minutes, getDropped(), bytesWritten, recorded == 0 ? 0.0 : bytesWritten / 1024.0 / minutes);
+    }
+
+    private void encode() {
+        try {
+            while (true) {
+                long h = head.get();
+                if (h == tail.get()) {
+                    if (closing && h == tail.get())
+                        break;
+                    out.flush();
+                    LockSupport.parkNanos(this, IDLE_POLL_NANOS);
+                    continue;
+                }
+                int slot = (int) h & indexMask;
+                long frameNumber = frameNumbers[slot];
+                long[] rows = frames[slot];
+                for (int y = 0; y < 32; y++) {
+                    long row = rows[y];
+                    for (int b = 0; b < 8; b++)
+                        current[y * 8 + b] = (byte) (row >>> (56 - 8 * b));
+                }
+                head.lazySet(h + 1); // the slot is copied out, the emulation thread may reuse it
+                write(frameNumber);
+            }
+            out.close();
+        } catch (IOException e) {
+            failure = e; // every further offer() counts as dropped
+        }
+    }
+
+    private void write(long frameNumber) throws IOException {
+        int length = DeltaCodec.encode(current, previous, DISPLAY_BYTES, delta, 0);
+        bytesWritten += writeVarLong(out, frameNumber - previousFrame);
+        bytesWritten += writeVarLong(out, length);
+        out.write(delta, 0, length);
+        bytesWritten += length;
+
+        System.arraycopy(current, 0, previous, 0, DISPLAY_BYTES);
+        previousFrame = frameNumber;
+        if (firstFrame < 0)
+            firstFrame = frameNumber;
+        lastFrame = frameNumber;
+        recorded++;
+    }
+
+    private static boolean equalRows(long[] a, long[] b) {
+        for (int y = 0; y < 32; y++) {
+            if (a[y] != b[y])
+                return false;
+        }
+        return true;
+    }
+
+    private static int writeVarLong(DataOutputStream out, long value) throws IOException {
+        int written = 1;
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+            written++;
+        }
+        out.writeByte((int) value);
+        return written;
+    }
+}
@@ -0,0 +1,72 @@
+package env;
+
+import chip.Chip;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+// Reports how much heap and time it takes to create Chip instances of one ROM, and how much heap they use
+// once they have run for a while and written to their memory.
+// Usage: FootprintReport <rom> [instances] [frames]
+public class FootprintReport {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: FootprintReport <rom> [instances] [frames]");
+            return;
+        }
+
+        byte[] rom = Files.readAllBytes(Paths.get(args[0]));
+        int instances = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int frames = args.length > 2 ? Integer.parseInt(args[2]) : 600;
+
+        // warm up the JIT on the creation path before timing it
+        create(rom, instances / 10);
+
+        long baseline = usedHeap();
+        long start = System.nanoTime();
+        Chip[] chips = create(rom, instances);
+        long elapsed = System.nanoTime() - start;
+        long created = usedHeap();
+
+        int faults = 0;
+        for (Chip chip : chips) {
+            try {
+                for (int f = 0; f < frames; f++)
+                    chip.runFrame();
+            } catch (RuntimeException e) {
+                faults++;
+            }
+        }
+        long ran = usedHeap();
+
+        long privatePages = 0;
+        for (Chip chip : chips)
+            privatePages += chip.getPrivatePageCount();
+
+        System.out.println(String.format("%d instances of %s", instances, args[0]));
+        System.out.println(String.format("creation:  %,10.0f ns per instance", (double) elapsed / instances));
+        System.out.println(String.format("footprint: %,10d bytes per instance after creation", (created - baseline) / instances));
+        System.out.println(String.format("           %,10d bytes per instance after %d frames (%.2f private pages, %d faulted)",
+                (ran - baseline) / instances, frames, (double) privatePages / instances, faults));
+    }
+
+    private static Chip[] create(byte[] rom, int instances) {
+        Chip[] chips = new Chip[instances];
+        for (int i = 0; i < instances; i++) {
+            Chip chip = new Chip();
+            chip.init();
+            chip.loadProgram(rom);
+            chips[i] = chip;
+        }
+        return chips;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,109 @@
+package env;
+
+import chip.Chip;
+import chip.ChipSnapshot;
+import chip.LockstepEngine;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+// Runs the same ROM, inputs and random seeds on independent Chip objects and on a LockstepEngine, reports frames
+// per second of each and checks that every instance ends in the same state on both.
+// Usage: LockstepBenchmark <rom> [instances] [frames]
+public class LockstepBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: LockstepBenchmark <rom> [instances] [frames]");
+            return;
+        }
+
+        byte[] rom = Files.readAllBytes(Paths.get(args[0]));
+        int instances = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        int frames = args.length > 2 ? Integer.parseInt(args[2]) : 600;
+
+        // one key mask per instance and frame, shared by both runs
+        Random random = new Random(1);
+        int[][] keys = new int[frames][instances];
+        for (int f = 0; f < frames; f++) {
+            for (int i = 0; i < instances; i++)
+                keys[f][i] = random.nextInt(8) == 0 ? 1 << random.nextInt(16) : 0;
+        }
+
+        System.out.println(String.format("%d instances, %d frames", instances, frames));
+
+        // warm up the JIT on both engines before timing
+        runChips(rom, instances, keys, frames / 4);
+        runLockstep(rom, instances, keys, frames / 4);
+
+        long start = System.nanoTime();
+        Chip[] chips = runChips(rom, instances, keys, frames);
+        double chipRate = (double) instances * frames / ((System.nanoTime() - start) / 1e9);
+
+        start = System.nanoTime();
+        LockstepEngine engine = runLockstep(rom, instances, keys, frames);
+        double lockstepRate = (double) instances * frames / ((System.nanoTime() - start) / 1e9);
+
+        System.out.println(String.format("Chip objects: %,14.0f instance-frames/s", chipRate));
+        System.out.println(String.format("Lockstep:     %,14.0f instance-frames/s  (x%.2f)", lockstepRate, lockstepRate / chipRate));
+
+        int mismatches = 0;
+        int faulted = 0;
+        ChipSnapshot expected = new ChipSnapshot();
+        ChipSnapshot actual = new ChipSnapshot();
+        for (int i = 0; i < instances; i++) {
+            boolean chipFaulted = chips[i] == null;
+            if (chipFaulted)
+                faulted++;
+            if (chipFaulted != engine.isFaulted(i)) {
+                mismatches++;
+                continue;
+            }
+            if (chipFaulted)
+                continue;
+            chips[i].snapshot(expected);
+            engine.snapshot(i, actual);
+            if (!expected.sameState(actual))
+                mismatches++;
+        }
+        System.out.println(String.format("%d of %d instances differ, %d faulted", mismatches, instances, faulted));
+    }
+
+    // Returns the chips after the run; an entry is null if that instance faulted
+    private static Chip[] runChips(byte[] rom, int instances, int[][] keys, int frames) {
+        Chip[] chips = new Chip[instances];
+        for (int i = 0; i < instances; i++) {
+            chips[i] = new Chip();
+            chips[i].init();
+            chips[i].loadProgram(rom);
+            chips[i].setSeed(i);
+        }
+        for (int f = 0; f < frames; f++) {
+            for (int i = 0; i < instances; i++) {
+                if (chips[i] == null)
+                    continue;
+                chips[i].setKeyMask(keys[f][i]);
+                try {
+                    chips[i].runFrame();
+                } catch (RuntimeException e) {
+                    chips[i] = null;
+                }
+            }
+        }
+        return chips;
+    }
+
+    private static LockstepEngine runLockstep(byte[] rom, int instances, int[][] keys, int frames) {
+        LockstepEngine engine = new LockstepEngine(rom, instances);
+        for (int i = 0; i < instances; i++)
+            engine.setSeed(i, i);
+        for (int f = 0; f < frames; f++) {
+            for (int i = 0; i < instances; i++)
+                engine.setKeyMask(i, keys[f][i]);
+            engine.runFrame();
+        }
+        return engine;
+    }
+}
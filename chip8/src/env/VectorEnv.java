@@ -0,0 +1,186 @@
+package env;
+
+import chip.Chip;
+import chip.ChipSnapshot;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Headless batch of Chip instances running the same ROM, stepped together for automated agents.
+ *
+ * Each step applies one key mask per instance, runs a number of frames on every instance that is still
+ * running, and leaves the packed framebuffers (32 longs per instance, see Chip.getDisplayRows()) and a
+ * per-instance status to be read back. Instances are spread over a ForkJoinPool; a fault in one instance
+ * only stops that instance. An instance blocked in FX0A with no key down passes the rest of the step's frames
+ * at once (see Chip.skipWaitingFrames()), so waiting instances hardly occupy a worker.
+ *
+ * Every instance has its own seed for CXNN (see Chip.setSeed()), so the batch is not N copies of one game.
+ * A reset starts the next episode of an instance with a seed that follows from its previous one, or with a
+ * seed the caller gives, so runs are reproducible either way.
+ */
+public class VectorEnv {
+
+    public static final byte RUNNING = 0;
+    public static final byte DONE = 1;   // reached the episode frame limit
+    public static final byte FAULT = 2;  // the ROM crashed, see getFault()
+
+    // Instances handled by one task before the work is split no further
+    private static final int GRAIN = 16;
+
+    private final Chip[] chips;
+    private final ChipSnapshot initial;
+    private final long[] seeds; // of each instance's current episode
+    private final long maxEpisodeFrames;
+    private final ForkJoinPool pool;
+
+    private final long[] framebuffers;
+    private final byte[] status;
+    private final RuntimeException[] faults;
+
+    // Inputs of the step in progress
+    private int[] keyMasks;
+    private int frames;
+
+    // One instance per seed; maxEpisodeFrames of 0 means episodes only end on a fault
+    public VectorEnv(byte[] rom, long[] seeds, int cyclesPerFrame, long maxEpisodeFrames, int parallelism) {
+        this.maxEpisodeFrames = maxEpisodeFrames;
+        this.pool = new ForkJoinPool(parallelism);
+        this.seeds = seeds.clone();
+
+        int instances = seeds.length;
+        chips = new Chip[instances];
+        for (int i = 0; i < instances; i++) {
+            Chip chip = new Chip();
+            chip.init();
+            chip.loadProgram(rom);
+            chip.setCyclesPerFrame(cyclesPerFrame);
+            chips[i] = chip;
+        }
+        initial = new ChipSnapshot();
+        chips[0].snapshot(initial);
+        for (int i = 0; i < instances; i++)
+            chips[i].setSeed(seeds[i]);
+
+        framebuffers = new long[instances * 32];
+        status = new byte[instances];
+        faults = new RuntimeException[instances];
+    }
+
+    // Instance i is seeded with seed + i
+    public VectorEnv(byte[] rom, int instances, long seed, int cyclesPerFrame, long maxEpisodeFrames, int parallelism) {
+        this(rom, seeds(seed, instances), cyclesPerFrame, maxEpisodeFrames, parallelism);
+    }
+
+    private static long[] seeds(long seed, int instances) {
+        long[] seeds = new long[instances];
+        for (int i = 0; i < instances; i++)
+            seeds[i] = seed + i;
+        return seeds;
+    }
+
+    public int size() {
+        return chips.length;
+    }
+
+    // Puts every instance back to the ROM's initial state for its next episode (see reset(int))
+    public void reset() {
+        for (int i = 0; i < chips.length; i++)
+            reset(i);
+    }
+
+    // Starts the next episode of the instance, seeded with one LCG step from the seed of its last episode
+    public void reset(int instance) {
+        reset(instance, seeds[instance] * 6364136223846793005L + 1442695040888963407L);
+    }
+
+    public void reset(int instance, long seed) {
+        seeds[instance] = seed;
+        chips[instance].restore(initial);
+        chips[instance].setSeed(seed);
+        status[instance] = RUNNING;
+        faults[instance] = null;
+        System.arraycopy(chips[instance].getDisplayRows(), 0, framebuffers, instance * 32, 32);
+    }
+
+    // Applies keyMasks[i] to instance i and runs the given number of frames on all running instances
+    public void step(int[] keyMasks, int frames) {
+        if (keyMasks.length != chips.length)
+            throw new IllegalArgumentException("Expected " + chips.length + " key masks, got " + keyMasks.length);
+        this.keyMasks = keyMasks;
+        this.frames = frames;
+        pool.invoke(new StepTask(0, chips.length));
+    }
+
+    // Packed rows of all instances: instance i occupies [i * 32, i * 32 + 32)
+    public long[] getFramebuffers() {
+        return framebuffers;
+    }
+
+    public byte getStatus(int instance) {
+        return status[instance];
+    }
+
+    public RuntimeException getFault(int instance) {
+        return faults[instance];
+    }
+
+    // Seed of the instance's current episode
+    public long getSeed(int instance) {
+        return seeds[instance];
+    }
+
+    public Chip getChip(int instance) {
+        return chips[instance];
+    }
+
+    public void close() {
+        pool.shutdown();
+    }
+
+    private void stepInstance(int i) {
+        if (status[i] != RUNNING)
+            return;
+
+        Chip chip = chips[i];
+        chip.setKeyMask(keyMasks[i]);
+        try {
+            for (int f = 0; f < frames; f++) {
+                if (chip.isWaitingForKey()) { // nothing can happen before the next step changes the keys
+                    chip.skipWaitingFrames(frames - f);
+                    break;
+                }
+                chip.runFrame();
+            }
+        } catch (RuntimeException e) { // ChipFault, or the ROM running off memory or the stack
+            status[i] = FAULT;
+            faults[i] = e;
+        }
+        if (status[i] == RUNNING && maxEpisodeFrames > 0 && chip.getFrameCount() >= maxEpisodeFrames)
+            status[i] = DONE;
+
+        System.arraycopy(chip.getDisplayRows(), 0, framebuffers, i * 32, 32);
+    }
+
+    private class StepTask extends RecursiveAction {
+
+        private final int from;
+        private final int to;
+
+        StepTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= GRAIN) {
+                for (int i = from; i < to; i++)
+                    stepInstance(i);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new StepTask(from, middle), new StepTask(middle, to));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package env;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+// Reports environment-steps per second of VectorEnv for 1, 2, 4, ... worker threads up to the core count.
+// Usage: VectorEnvBenchmark <rom> [instances] [frames per step] [steps]
+public class VectorEnvBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: VectorEnvBenchmark <rom> [instances] [frames per step] [steps]");
+            return;
+        }
+
+        byte[] rom = Files.readAllBytes(Paths.get(args[0]));
+        int instances = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        int framesPerStep = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int steps = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        System.out.println(String.format("%d instances, %d frames per step, %d steps, %d cores", instances, framesPerStep, steps, cores));
+        double single = 0;
+        for (int threads = 1; threads <= cores; threads = threads < cores && threads * 2 > cores ? cores : threads * 2) {
+            double rate = measure(rom, instances, framesPerStep, steps, threads);
+            if (threads == 1)
+                single = rate;
+            System.out.println(String.format("%3d threads: %,12.0f env-steps/s  (x%.2f)", threads, rate, rate / single));
+        }
+    }
+
+    private static double measure(byte[] rom, int instances, int framesPerStep, int steps, int threads) {
+        VectorEnv env = new VectorEnv(rom, instances, 1, 10, 0, threads);
+        Random random = new Random(1);
+        int[] keys = new int[instances];
+        int faults = 0;
+        try {
+            // warm up the JIT before timing
+            for (int s = 0; s < steps / 4; s++)
+                env.step(keys, framesPerStep);
+            env.reset();
+
+            long start = System.nanoTime();
+            for (int s = 0; s < steps; s++) {
+                for (int i = 0; i < instances; i++)
+                    keys[i] = random.nextInt(8) == 0 ? 1 << random.nextInt(16) : 0;
+                env.step(keys, framesPerStep);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            for (int i = 0; i < instances; i++) {
+                if (env.getStatus(i) == VectorEnv.FAULT)
+                    faults++;
+            }
+            if (faults > 0)
+                System.out.println(faults + " instances faulted, e.g. " + firstFault(env));
+            return (double) instances * steps / (elapsed / 1e9);
+        } finally {
+            env.close();
+        }
+    }
+
+    private static String firstFault(VectorEnv env) {
+        for (int i = 0; i < env.size(); i++) {
+            if (env.getFault(i) != null)
+                return env.getFault(i).toString();
+        }
+        return "";
+    }
+}
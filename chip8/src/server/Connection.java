@@ -0,0 +1,90 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A client of SessionServer. The frame thread collects every message of a frame for this client into one batch
+// and queues it; the I/O thread writes queued batches with gathering writes and reads the client's requests.
+final class Connection {
+
+    final SocketChannel channel;
+    SelectionKey key;
+
+    // I/O thread: bytes received and not parsed yet
+    final ByteBuffer input = ByteBuffer.allocate(Protocol.MAX_CLIENT_MESSAGE * 4);
+
+    // Batches queued by the frame thread and not yet written, and their total size
+    final Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>();
+    final AtomicLong queuedBytes = new AtomicLong();
+
+    volatile boolean closed;
+
+    // Frame thread: messages of the frame being assembled
+    private ByteBuffer batch = ByteBuffer.allocate(4096);
+
+    Connection(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    // Frame thread: appends a FRAME message
+    void sendFrame(int session, long frame, long echo, byte flags, byte[] delta, int length) {
+        ByteBuffer out = startMessage(Protocol.FRAME, 4 + 8 + 8 + 1 + length);
+        out.putInt(session).putLong(frame).putLong(echo).put(flags).put(delta, 0, length);
+    }
+
+    void sendOpened(int tag, int session) {
+        startMessage(Protocol.OPENED, 8).putInt(tag).putInt(session);
+    }
+
+    void sendClosed(int session, String reason) {
+        sendText(Protocol.CLOSED, session, reason);
+    }
+
+    void sendError(int tag, String message) {
+        sendText(Protocol.ERROR, tag, message);
+    }
+
+    // Frame thread: whether messages were appended since the last takeBatch()
+    boolean hasBatch() {
+        return batch.position() > 0;
+    }
+
+    // Frame thread: moves the messages appended so far into the outbox and returns their size
+    int takeBatch() {
+        batch.flip();
+        ByteBuffer copy = ByteBuffer.allocate(batch.remaining());
+        copy.put(batch).flip();
+        batch.clear();
+        queuedBytes.addAndGet(copy.remaining());
+        outbox.add(copy);
+        return copy.remaining();
+    }
+
+    private void sendText(byte type, int id, String text) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(id);
+            out.writeUTF(text.length() > 1000 ? text.substring(0, 1000) : text);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // cannot happen writing to memory
+        }
+        startMessage(type, bytes.size()).put(bytes.toByteArray());
+    }
+
+    private ByteBuffer startMessage(byte type, int payload) {
+        int size = Protocol.HEADER_SIZE + payload;
+        if (batch.remaining() < size) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(batch.capacity() * 2, batch.position() + size));
+            batch.flip();
+            batch = larger.put(batch);
+        }
+        return batch.putInt(1 + payload).put(type);
+    }
+}
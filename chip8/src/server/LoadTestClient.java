@@ -0,0 +1,234 @@
+package server;
+
+import chip.DeltaCodec;
+import emu.Histogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Opens many sessions on a SessionServer, subscribes to them, taps random keys and reports the frame rate the
+// server sustains, the bytes it sends per frame and the time from sending a key to receiving the first frame
+// that ran with it. Sessions are spread over connections of at most 64 sessions, each read by its own thread.
+// Usage: LoadTestClient <port | socket path> <rom> [sessions] [seconds]
+public class LoadTestClient {
+
+    private static final int SESSIONS_PER_CONNECTION = 64;
+    private static final long KEY_INTERVAL_NANOS = 250_000_000L;
+
+    private final Histogram latency = new Histogram();
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong keyframes = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: LoadTestClient <port | socket path> <rom> [sessions] [seconds]");
+            return;
+        }
+        int sessions = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        new LoadTestClient().run(args[0], args[1], sessions, seconds);
+    }
+
+    private void run(String address, String rom, int sessions, int seconds) throws Exception {
+        int connectionCount = (sessions + SESSIONS_PER_CONNECTION - 1) / SESSIONS_PER_CONNECTION;
+        Client[] clients = new Client[connectionCount];
+        for (int c = 0; c < connectionCount; c++) {
+            int count = Math.min(SESSIONS_PER_CONNECTION, sessions - c * SESSIONS_PER_CONNECTION);
+            clients[c] = new Client(connect(address), count);
+            clients[c].open(rom);
+        }
+
+        // latency only counts once every session is up
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        long[] firstFrames = new long[connectionCount];
+        for (int c = 0; c < connectionCount; c++)
+            firstFrames[c] = clients[c].frameSum();
+        framesReceived.set(0);
+        bytesReceived.set(0);
+
+        Random random = new Random(1);
+        while (System.nanoTime() < end) {
+            for (Client client : clients)
+                client.tapKeys(random);
+            Thread.sleep(KEY_INTERVAL_NANOS / 1_000_000);
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long emulated = 0;
+        for (int c = 0; c < connectionCount; c++) {
+            emulated += clients[c].frameSum() - firstFrames[c];
+            clients[c].channel.close();
+        }
+        long frames = framesReceived.get();
+        System.out.println(String.format("%d sessions over %d connections for %.1f s", sessions, connectionCount, elapsed));
+        System.out.println(String.format("emulated frames/s per session %.1f (60 when the server keeps up)", emulated / elapsed / sessions));
+        System.out.println(String.format("frames received %d (%.1f/s per session), %d keyframes, %d errors", frames,
+                frames / elapsed / sessions, keyframes.get(), errors.get()));
+        System.out.println(String.format("bytes per frame received %.1f, %.1f KB/s in total", frames == 0 ? 0.0 : (double) bytesReceived.get() / frames,
+                bytesReceived.get() / 1024.0 / elapsed));
+        System.out.println("key to frame latency " + latency);
+    }
+
+    private static SocketChannel connect(String address) throws IOException {
+        if (address.matches("\\d+"))
+            return SocketChannel.open(SessionServer.parseAddress(address));
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.connect(UnixDomainSocketAddress.of(address));
+        return channel;
+    }
+
+    // One connection: the main thread sends requests, a reader thread decodes frames into the sessions' displays
+    private final class Client {
+
+        final SocketChannel channel;
+        final int[] ids;
+        final byte[][] displays;
+        final long[] lastFrames;
+        final int[] masks;
+        private int opened;
+
+        Client(SocketChannel channel, int sessions) {
+            this.channel = channel;
+            ids = new int[sessions];
+            displays = new byte[sessions][Protocol.DISPLAY_BYTES];
+            lastFrames = new long[sessions];
+            masks = new int[sessions];
+        }
+
+        // Opens and subscribes to every session of this connection, then starts reading frames
+        void open(String rom) throws IOException {
+            for (int tag = 0; tag < ids.length; tag++) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(tag);
+                out.writeUTF(rom);
+                send(Protocol.OPEN, bytes.toByteArray());
+            }
+            ByteBuffer input = ByteBuffer.allocate(1 << 16);
+            while (opened < ids.length) {
+                if (channel.read(input) < 0)
+                    throw new IOException("Server closed the connection");
+                input.flip();
+                while (input.remaining() >= 4 && input.remaining() >= 4 + input.getInt(input.position())) {
+                    int length = input.getInt();
+                    int end = input.position() + length;
+                    byte type = input.get();
+                    if (type == Protocol.OPENED) {
+                        ids[input.getInt()] = input.getInt();
+                        opened++;
+                    } else if (type == Protocol.ERROR) {
+                        throw new IOException("Cannot open " + rom);
+                    }
+                    input.position(end);
+                }
+                input.compact();
+            }
+            for (int id : ids)
+                send(Protocol.SUBSCRIBE, ByteBuffer.allocate(4).putInt(id).array());
+
+            Thread reader = new Thread(() -> read(input), "reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        // Presses or releases one random key in every session
+        void tapKeys(Random random) throws IOException {
+            ByteBuffer batch = ByteBuffer.allocate(ids.length * (Protocol.HEADER_SIZE + 14));
+            for (int i = 0; i < ids.length; i++) {
+                masks[i] = masks[i] != 0 ? 0 : 1 << random.nextInt(16);
+                batch.putInt(1 + 14).put(Protocol.KEYS).putInt(ids[i]).putShort((short) masks[i]).putLong(System.nanoTime());
+            }
+            batch.flip();
+            synchronized (channel) {
+                while (batch.hasRemaining())
+                    channel.write(batch);
+            }
+        }
+
+        long frameSum() {
+            synchronized (lastFrames) {
+                long sum = 0;
+                for (long frame : lastFrames)
+                    sum += frame;
+                return sum;
+            }
+        }
+
+        private void send(byte type, byte[] payload) throws IOException {
+            ByteBuffer message = ByteBuffer.allocate(Protocol.HEADER_SIZE + payload.length);
+            message.putInt(1 + payload.length).put(type).put(payload).flip();
+            synchronized (channel) {
+                while (message.hasRemaining())
+                    channel.write(message);
+            }
+        }
+
+        private void read(ByteBuffer input) {
+            try {
+                while (channel.read(input) >= 0) {
+                    input.flip();
+                    while (input.remaining() >= 4 && input.remaining() >= 4 + input.getInt(input.position())) {
+                        int length = input.getInt();
+                        int end = input.position() + length;
+                        if (input.get() == Protocol.FRAME)
+                            frame(input, end);
+                        else
+                            errors.incrementAndGet();
+                        bytesReceived.addAndGet(4 + length);
+                        input.position(end);
+                    }
+                    input.compact();
+                }
+            } catch (IOException e) {
+                // closed at the end of the test
+            }
+        }
+
+        private void frame(ByteBuffer input, int end) {
+            long now = System.nanoTime();
+            int id = input.getInt();
+            long frame = input.getLong();
+            long echo = input.getLong();
+            byte flags = input.get();
+            int session = id - ids[0]; // sessions of one connection get consecutive ids unless others open at once
+            if (session < 0 || session >= ids.length || ids[session] != id)
+                session = indexOf(id);
+
+            byte[] display = displays[session];
+            if ((flags & Protocol.KEYFRAME) != 0) {
+                Arrays.fill(display, (byte) 0);
+                keyframes.incrementAndGet();
+            }
+            if (DeltaCodec.apply(input.array(), input.position(), display, Protocol.DISPLAY_BYTES) != end)
+                errors.incrementAndGet();
+            synchronized (lastFrames) {
+                lastFrames[session] = frame;
+            }
+            if (echo != 0) {
+                synchronized (latency) { // one histogram for all reader threads
+                    latency.record(now - echo);
+                }
+            }
+            framesReceived.incrementAndGet();
+        }
+
+        private int indexOf(int id) {
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == id)
+                    return i;
+            }
+            throw new IllegalStateException("Frame for unknown session " + id);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package server;
+
+/**
+ * Wire format of SessionServer. Every message is an int length (of everything after it), a type byte and a
+ * payload, all big endian; strings are modified UTF-8 as written by DataOutput.writeUTF(). The server drops a
+ * client that sends a message of an unknown type, or one whose fields do not fill exactly its length.
+ *
+ * Client to server:
+ *   OPEN        tag (int), ROM name or SHA-1 prefix (UTF). Starts a session owned by this connection.
+ *   SUBSCRIBE   session (int). Streams the session's frames to this connection, starting with a keyframe.
+ *   UNSUBSCRIBE session (int).
+ *   KEYS        session (int), key mask (short), client time (long). Applied at the next frame boundary, one
+ *               mask per frame; the time is echoed in the first frame that ran with it.
+ *   CLOSE       session (int). Only the owner can close a session; all of them close when it disconnects.
+ *
+ * Server to client:
+ *   OPENED      tag (int), session (int).
+ *   FRAME       session (int), frame number (long), echoed client time (long, 0 if none), flags (byte), then a
+ *               DeltaCodec delta over the 256 display bytes (32 rows of 8 bytes, most significant pixel first).
+ *               A delta is against the display of the previous FRAME of that session, or against a blank
+ *               display if the KEYFRAME flag is set. Frames where nothing changed and nothing is echoed are
+ *               not sent.
+ *   CLOSED      session (int), reason (UTF).
+ *   ERROR       tag (int, -1 if not about an OPEN), message (UTF).
+ */
+final class Protocol {
+
+    static final byte OPEN = 1;
+    static final byte SUBSCRIBE = 2;
+    static final byte UNSUBSCRIBE = 3;
+    static final byte KEYS = 4;
+    static final byte CLOSE = 5;
+
+    static final byte OPENED = 1;
+    static final byte FRAME = 2;
+    static final byte CLOSED = 3;
+    static final byte ERROR = 4;
+
+    static final byte KEYFRAME = 1;
+
+    static final int DISPLAY_BYTES = 32 * 8;
+
+    // Length prefix plus type
+    static final int HEADER_SIZE = 5;
+
+    // Longest message a client may send; OPEN with its name is the only variable one
+    static final int MAX_CLIENT_MESSAGE = 1024;
+
+    private Protocol() {
+    }
+}
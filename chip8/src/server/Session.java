@@ -0,0 +1,136 @@
+package server;
+
+import chip.Chip;
+import chip.DeltaCodec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// One emulated machine served by SessionServer. Touched only by the frame thread, except step(), which the step
+// pool runs for each session in parallel while nothing else touches sessions.
+final class Session {
+
+    private static final byte[] BLANK = new byte[Protocol.DISPLAY_BYTES];
+    private static final int MAX_PENDING_KEYS = 64;
+
+    final int id;
+    final Connection owner;
+    final List<Subscriber> subscribers = new ArrayList<>();
+
+    private final Chip chip;
+
+    // Key masks received and not applied yet, one per frame, with the client times to echo back
+    private final int[] pendingMasks = new int[MAX_PENDING_KEYS];
+    private final long[] pendingTimes = new long[MAX_PENDING_KEYS];
+    private int pendingHead;
+    private int pendingCount;
+
+    // The display as of the last step, one byte per 8 pixels, and as last streamed to subscribers in sync
+    private final byte[] display = new byte[Protocol.DISPLAY_BYTES];
+    private final byte[] streamed = new byte[Protocol.DISPLAY_BYTES];
+
+    // Result of the last step(): delta from the previously streamed display, whether it is empty, the client time
+    // to echo (0 if none) and the fault that ended the session, if any
+    final byte[] delta = new byte[DeltaCodec.maxEncodedSize(Protocol.DISPLAY_BYTES)];
+    int deltaLength;
+    boolean changed;
+    long echo;
+    RuntimeException fault;
+
+    // Keyframe of the current display, encoded for the first subscriber of this frame that needs one
+    private final byte[] keyframe = new byte[DeltaCodec.maxEncodedSize(Protocol.DISPLAY_BYTES)];
+    private int keyframeLength = -1;
+
+    Session(int id, Connection owner, byte[] rom, int cyclesPerFrame) {
+        this.id = id;
+        this.owner = owner;
+        chip = new Chip();
+        chip.init();
+        chip.loadProgram(rom);
+        chip.setCyclesPerFrame(cyclesPerFrame);
+    }
+
+    // Queues a key mask for a coming frame; masks arriving faster than one per frame wait their turn, so short
+    // taps are not lost, and the oldest are dropped beyond MAX_PENDING_KEYS
+    void queueKeys(int mask, long clientTime) {
+        if (pendingCount == MAX_PENDING_KEYS) {
+            pendingHead = (pendingHead + 1) % MAX_PENDING_KEYS;
+            pendingCount--;
+        }
+        int slot = (pendingHead + pendingCount) % MAX_PENDING_KEYS;
+        pendingMasks[slot] = mask;
+        pendingTimes[slot] = clientTime;
+        pendingCount++;
+    }
+
+    // Runs one frame and encodes what changed on the display
+    void step() {
+        echo = 0;
+        keyframeLength = -1;
+        if (pendingCount > 0) {
+            chip.setKeyMask(pendingMasks[pendingHead]);
+            echo = pendingTimes[pendingHead];
+            pendingHead = (pendingHead + 1) % MAX_PENDING_KEYS;
+            pendingCount--;
+        }
+        try {
+            chip.runFrame();
+        } catch (RuntimeException e) { // ChipFault, or the ROM running off memory or the stack
+            fault = e;
+            return;
+        }
+
+        long[] rows = chip.getDisplayRows();
+        int dirty = chip.takeDirtyRows();
+        for (int candidates = dirty; candidates != 0; candidates &= candidates - 1) {
+            int y = Integer.numberOfTrailingZeros(candidates);
+            long row = rows[y];
+            for (int b = 0; b < 8; b++)
+                display[y * 8 + b] = (byte) (row >>> (56 - 8 * b));
+        }
+        changed = dirty != 0 && !Arrays.equals(display, streamed);
+        if (changed) {
+            deltaLength = DeltaCodec.encode(display, streamed, Protocol.DISPLAY_BYTES, delta, 0);
+            System.arraycopy(display, 0, streamed, 0, Protocol.DISPLAY_BYTES);
+        } else {
+            deltaLength = DeltaCodec.encode(display, display, Protocol.DISPLAY_BYTES, delta, 0);
+        }
+    }
+
+    // The current display as a delta from a blank one
+    byte[] keyframe() {
+        if (keyframeLength < 0)
+            keyframeLength = DeltaCodec.encode(display, BLANK, Protocol.DISPLAY_BYTES, keyframe, 0);
+        return keyframe;
+    }
+
+    int keyframeLength() {
+        keyframe();
+        return keyframeLength;
+    }
+
+    long getFrame() {
+        return chip.getFrameCount();
+    }
+
+    Subscriber findSubscriber(Connection connection) {
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.connection == connection)
+                return subscriber;
+        }
+        return null;
+    }
+
+    static final class Subscriber {
+
+        final Connection connection;
+
+        // Set until the subscriber has been sent the whole display, and again after it fell behind
+        boolean needsKeyframe = true;
+
+        Subscriber(Connection connection) {
+            this.connection = connection;
+        }
+    }
+}
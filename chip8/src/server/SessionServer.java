@@ -0,0 +1,462 @@
+package server;
+
+import chip.RomLibrary;
+import emu.FramePacer;
+import emu.Histogram;
+import emu.Main;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Hosts many CHIP-8 sessions in one JVM and streams their displays to clients over TCP or a Unix domain socket,
+ * see Protocol for the messages.
+ *
+ * Two threads share the work. The frame thread owns all sessions: at every 60 Hz frame boundary it applies the
+ * requests the clients sent, steps every session once on a ForkJoinPool, and assembles each client's messages of
+ * that frame into one batch. The I/O thread runs a Selector: it accepts clients, parses their requests into
+ * commands for the frame thread, and writes the batches. A client that reads too slowly is skipped until its
+ * queue drains and then gets a keyframe, so it never holds up the others.
+ */
+public class SessionServer {
+
+    // Queued bytes above which a client is sent no more frames until it catches up
+    private static final long MAX_QUEUED_BYTES = 256 * 1024;
+    private static final int STATUS_INTERVAL_FRAMES = 600;
+
+    private final SocketAddress address;
+    private final RomLibrary library;
+    private final int cyclesPerFrame;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ForkJoinPool pool;
+    private final FramePacer pacer = new FramePacer(60, 5);
+
+    // Requests for the frame thread, and clients with batches for the I/O thread
+    private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> flushes = new ConcurrentLinkedQueue<>();
+
+    // Frame thread
+    private final Map<Integer, Session> sessions = new HashMap<>();
+    private Session[] stepOrder = new Session[0];
+    private boolean sessionsChanged;
+    private int nextSessionId = 1;
+    private final List<Connection> batched = new ArrayList<>();
+    private final Histogram frameTimes = new Histogram();
+    private long bytesQueued;
+
+    private volatile boolean running = true;
+    private Thread ioThread;
+    private Thread frameThread;
+
+    public SessionServer(SocketAddress address, RomLibrary library, int cyclesPerFrame, int parallelism) throws IOException {
+        this.address = address;
+        this.library = library;
+        this.cyclesPerFrame = cyclesPerFrame;
+        if (address instanceof UnixDomainSocketAddress) {
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+            serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            serverChannel = ServerSocketChannel.open();
+        }
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        selector = Selector.open();
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    public void start() {
+        ioThread = new Thread(this::serveConnections, "chip8-io");
+        frameThread = new Thread(this::runFrames, "chip8-frames");
+        ioThread.start();
+        frameThread.start();
+    }
+
+    public void close() throws IOException, InterruptedException {
+        running = false;
+        selector.wakeup();
+        frameThread.join();
+        ioThread.join();
+        pool.shutdown();
+        for (SelectionKey key : selector.keys())
+            key.channel().close();
+        selector.close();
+        if (address instanceof UnixDomainSocketAddress)
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+    }
+
+    // Frame thread
+
+    private void runFrames() {
+        pacer.start();
+        long frames = 0;
+        while (running) {
+            long start = System.nanoTime();
+            for (Runnable command; (command = commands.poll()) != null; )
+                command.run();
+
+            if (sessionsChanged) {
+                stepOrder = sessions.values().toArray(new Session[0]);
+                sessionsChanged = false;
+            }
+            if (stepOrder.length > 0)
+                pool.invoke(new StepTask(stepOrder, 0, stepOrder.length));
+            for (Session session : stepOrder)
+                publish(session);
+
+            for (Connection connection : batched) {
+                if (connection.closed)
+                    continue;
+                bytesQueued += connection.takeBatch();
+                flushes.add(connection);
+            }
+            if (!batched.isEmpty())
+                selector.wakeup();
+            batched.clear();
+
+            frameTimes.record(System.nanoTime() - start);
+            if (++frames % STATUS_INTERVAL_FRAMES == 0)
+                printStatus();
+            pacer.awaitNextFrame();
+        }
+    }
+
+    private void publish(Session session) {
+        if (session.fault != null) {
+            closeSession(session, "Fault: " + session.fault.getMessage());
+            return;
+        }
+        for (Session.Subscriber subscriber : session.subscribers) {
+            Connection connection = subscriber.connection;
+            if (connection.queuedBytes.get() > MAX_QUEUED_BYTES) {
+                subscriber.needsKeyframe = true; // skipped frames make later deltas useless to it
+                continue;
+            }
+            if (subscriber.needsKeyframe) {
+                out(connection).sendFrame(session.id, session.getFrame(), session.echo, Protocol.KEYFRAME,
+                        session.keyframe(), session.keyframeLength());
+                subscriber.needsKeyframe = false;
+            } else if (session.changed || session.echo != 0) {
+                out(connection).sendFrame(session.id, session.getFrame(), session.echo, (byte) 0, session.delta, session.deltaLength);
+            }
+        }
+    }
+
+    // The connection, noted as having messages in this frame's batch; call before appending one
+    private Connection out(Connection connection) {
+        if (!connection.hasBatch())
+            batched.add(connection);
+        return connection;
+    }
+
+    private void open(Connection connection, int tag, byte[] rom) {
+        Session session;
+        try {
+            session = new Session(nextSessionId++, connection, rom, cyclesPerFrame);
+        } catch (IllegalArgumentException e) {
+            out(connection).sendError(tag, e.getMessage());
+            return;
+        }
+        sessions.put(session.id, session);
+        sessionsChanged = true;
+        out(connection).sendOpened(tag, session.id);
+    }
+
+    private void subscribe(Connection connection, int id) {
+        Session session = sessions.get(id);
+        if (session == null) {
+            out(connection).sendError(-1, "No session " + id);
+        } else if (session.findSubscriber(connection) == null) {
+            session.subscribers.add(new Session.Subscriber(connection));
+        }
+    }
+
+    private void unsubscribe(Connection connection, int id) {
+        Session session = sessions.get(id);
+        if (session != null)
+            session.subscribers.remove(session.findSubscriber(connection));
+    }
+
+    private void keys(int id, int mask, long clientTime) {
+        Session session = sessions.get(id);
+        if (session != null)
+            session.queueKeys(mask, clientTime);
+    }
+
+    private void close(Connection connection, int id) {
+        Session session = sessions.get(id);
+        if (session != null && session.owner == connection)
+            closeSession(session, "Closed by its owner");
+    }
+
+    private void disconnected(Connection connection) {
+        for (Session session : new ArrayList<>(sessions.values())) {
+            session.subscribers.remove(session.findSubscriber(connection));
+            if (session.owner == connection)
+                closeSession(session, "Owner disconnected");
+        }
+    }
+
+    private void closeSession(Session session, String reason) {
+        sessions.remove(session.id);
+        sessionsChanged = true;
+        for (Session.Subscriber subscriber : session.subscribers) {
+            if (subscriber.connection.closed)
+                continue;
+            out(subscriber.connection).sendClosed(session.id, reason);
+        }
+        session.subscribers.clear();
+    }
+
+    private void printStatus() {
+        System.out.println(String.format("sessions %d, frame time %s, late %d, dropped %d, sent %.1f KB/s",
+                sessions.size(), frameTimes, pacer.getLateFrames(), pacer.getDroppedFrames(),
+                bytesQueued / 1024.0 / (STATUS_INTERVAL_FRAMES / 60.0)));
+        bytesQueued = 0;
+    }
+
+    // I/O thread
+
+    private void serveConnections() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            for (Connection connection; (connection = flushes.poll()) != null; )
+                flush(connection);
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid())
+                    continue;
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                if (key.isReadable())
+                    read(connection);
+                if (key.isValid() && key.isWritable())
+                    flush(connection);
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null)
+                return;
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void read(Connection connection) {
+        try {
+            if (connection.channel.read(connection.input) < 0) {
+                disconnect(connection);
+                return;
+            }
+            ByteBuffer input = connection.input;
+            input.flip();
+            while (input.remaining() >= 4) {
+                int length = input.getInt(input.position());
+                if (length < 1 || length > Protocol.MAX_CLIENT_MESSAGE)
+                    throw new IOException("Bad message length " + length);
+                if (input.remaining() < 4 + length)
+                    break;
+                input.position(input.position() + 4);
+                int end = input.position() + length;
+                parse(connection, input, end);
+                input.position(end);
+            }
+            input.compact();
+        } catch (IOException | RuntimeException e) {
+            disconnect(connection);
+        }
+    }
+
+    // Turns one request into a command for the frame thread; looks ROMs up here, so the frame thread never waits
+    // for the disk. A request whose fields do not fill exactly its length disconnects the client.
+    private void parse(Connection connection, ByteBuffer in, int end) throws IOException {
+        byte type = in.get();
+        switch (type) {
+            case Protocol.OPEN: {
+                int tag = in.getInt();
+                int nameStart = in.position();
+                in.position(nameStart + 2 + (in.getShort(nameStart) & 0xFFFF));
+                expectEnd(in, end, type);
+                String name = new DataInputStream(new ByteArrayInputStream(in.array(), nameStart, end - nameStart)).readUTF();
+                byte[] rom = null;
+                String error;
+                try {
+                    RomLibrary.Entry entry = library.find(name);
+                    rom = entry != null ? library.read(entry) : null;
+                    error = entry != null ? null : "No ROM named " + name;
+                } catch (IOException | IllegalArgumentException e) {
+                    error = e.getMessage();
+                }
+                byte[] found = rom;
+                String failure = error;
+                commands.add(() -> {
+                    if (found != null) {
+                        open(connection, tag, found);
+                    } else {
+                        out(connection).sendError(tag, failure);
+                    }
+                });
+                break;
+            }
+            case Protocol.SUBSCRIBE: {
+                int id = in.getInt();
+                expectEnd(in, end, type);
+                commands.add(() -> subscribe(connection, id));
+                break;
+            }
+            case Protocol.UNSUBSCRIBE: {
+                int id = in.getInt();
+                expectEnd(in, end, type);
+                commands.add(() -> unsubscribe(connection, id));
+                break;
+            }
+            case Protocol.KEYS: {
+                int id = in.getInt();
+                int mask = in.getShort() & 0xFFFF;
+                long clientTime = in.getLong();
+                expectEnd(in, end, type);
+                commands.add(() -> keys(id, mask, clientTime));
+                break;
+            }
+            case Protocol.CLOSE: {
+                int id = in.getInt();
+                expectEnd(in, end, type);
+                commands.add(() -> close(connection, id));
+                break;
+            }
+            default:
+                throw new IOException("Unknown message type " + type);
+        }
+    }
+
+    private static void expectEnd(ByteBuffer in, int end, byte type) throws IOException {
+        if (in.position() != end)
+            throw new IOException("Message of type " + type + " is " + (end - in.position()) + " bytes off its length");
+    }
+
+    // Writes as many queued batches as the socket takes in one gathering write
+    private void flush(Connection connection) {
+        if (connection.closed)
+            return;
+        try {
+            ByteBuffer[] pending = connection.outbox.toArray(new ByteBuffer[0]);
+            if (pending.length > 0) {
+                connection.channel.write(pending);
+                for (ByteBuffer buffer : pending) {
+                    if (buffer.hasRemaining())
+                        break;
+                    connection.outbox.poll();
+                    connection.queuedBytes.addAndGet(-buffer.capacity());
+                }
+            }
+            boolean blocked = !connection.outbox.isEmpty();
+            connection.key.interestOps(SelectionKey.OP_READ | (blocked ? SelectionKey.OP_WRITE : 0));
+        } catch (IOException e) {
+            disconnect(connection);
+        }
+    }
+
+    private void disconnect(Connection connection) {
+        if (connection.closed)
+            return;
+        connection.closed = true;
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // already gone
+        }
+        connection.outbox.clear();
+        commands.add(() -> disconnected(connection));
+    }
+
+    private static final class StepTask extends RecursiveAction {
+
+        // Sessions stepped by one task before the work is split no further
+        private static final int GRAIN = 16;
+
+        private final Session[] sessions;
+        private final int from;
+        private final int to;
+
+        StepTask(Session[] sessions, int from, int to) {
+            this.sessions = sessions;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= GRAIN) {
+                for (int i = from; i < to; i++)
+                    sessions[i].step();
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new StepTask(sessions, from, middle), new StepTask(sessions, middle, to));
+        }
+    }
+
+    // The address is a port on the loopback interface, or the path of a Unix domain socket. -Dchip8.hz sets the
+    // instructions per second of every session, -Dchip8.threads the threads stepping them; ROMs come from the
+    // library (see Main.openLibrary()).
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: SessionServer <port | socket path>");
+            return;
+        }
+
+        SessionServer server = new SessionServer(parseAddress(args[0]), Main.openLibrary(),
+                Math.max(1, Integer.getInteger("chip8.hz", 600) / 60),
+                Integer.getInteger("chip8.threads", Runtime.getRuntime().availableProcessors()));
+        server.start();
+        System.out.println("Serving on " + args[0]);
+    }
+
+    static SocketAddress parseAddress(String address) {
+        if (address.matches("\\d+"))
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+        return UnixDomainSocketAddress.of(Path.of(address));
+    }
+}